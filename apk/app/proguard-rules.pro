@@ -7,6 +7,7 @@
 
 # Keep data models - CRITICAL for preventing crashes
 -keep class ru.chasepay.mobile.data.models.** { *; }
+-keep class ru.chasepay.mobile.models.** { *; }
 -keep class ru.chasepay.mobile.data.remote.responses.** { *; }
 -keep class ru.chasepay.mobile.data.remote.requests.** { *; }
 
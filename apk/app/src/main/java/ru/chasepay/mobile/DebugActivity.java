@@ -17,6 +17,9 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.NotificationCompat;
 
 import ru.chasepay.mobile.databinding.ActivityDebugBinding;
+import ru.chasepay.mobile.services.ClockSync;
+import ru.chasepay.mobile.services.DeliveryMetrics;
+import ru.chasepay.mobile.services.UniversalConnectionService;
 import ru.chasepay.mobile.utils.ApiLogManager;
 import android.os.Handler;
 import android.text.method.ScrollingMovementMethod;
@@ -79,6 +82,13 @@ public class DebugActivity extends AppCompatActivity {
         info.append("=== РАЗРЕШЕНИЯ ===\n");
         info.append("Проверьте настройки приложения для статуса разрешений\n");
         
+        info.append("\n=== СОСТОЯНИЕ СОЕДИНЕНИЯ ===\n");
+        info.append(UniversalConnectionService.getInstance(this).getStateSnapshot().format());
+        info.append(ClockSync.getInstance(this).formatSummary());
+        
+        info.append("\n=== ЗАДЕРЖКА ДОСТАВКИ УВЕДОМЛЕНИЙ ===\n");
+        info.append(DeliveryMetrics.getInstance(this).formatSummary());
+        
         // Add test notification button
         binding.testNotificationButton.setOnClickListener(v -> createTestNotification());
         
@@ -31,8 +31,11 @@ import ru.chasepay.mobile.api.DeviceApi;
 import ru.chasepay.mobile.databinding.ActivityMainBinding;
 import ru.chasepay.mobile.models.ConnectRequest;
 import ru.chasepay.mobile.models.ConnectResponse;
+import ru.chasepay.mobile.models.NotificationAckResponse;
+import ru.chasepay.mobile.models.NotificationRequest;
 import ru.chasepay.mobile.models.PingResponse;
 import ru.chasepay.mobile.utils.DeviceUtils;
+import ru.chasepay.mobile.services.ClockSync;
 import ru.chasepay.mobile.services.DevicePingService;
 import ru.chasepay.mobile.services.DeviceForegroundService;
 import com.google.zxing.integration.android.IntentIntegrator;
@@ -563,18 +566,19 @@ public class MainActivity extends AppCompatActivity {
             Log.d(TAG, "Sending test notification with token: " + deviceToken);
             
             // Create test notification request
-            ru.chasepay.mobile.models.NotificationRequest request = new ru.chasepay.mobile.models.NotificationRequest();
+            NotificationRequest request = new NotificationRequest();
             request.packageName = "com.test.app";
             request.appName = "Test App";
             request.title = "Test Notification";
             request.content = "This is a test notification from Chase app";
-            request.timestamp = System.currentTimeMillis();
+            request.timestamp = ClockSync.getInstance(this).now();
             request.priority = 1;
             request.category = "test";
             
-            deviceApi.sendNotification("Bearer " + deviceToken, request).enqueue(new retrofit2.Callback<Void>() {
+            deviceApi.sendNotification("Bearer " + deviceToken, request).enqueue(new Callback<NotificationAckResponse>() {
                 @Override
-                public void onResponse(retrofit2.Call<Void> call, retrofit2.Response<Void> response) {
+                public void onResponse(Call<NotificationAckResponse> call,
+                                       Response<NotificationAckResponse> response) {
                     if (response.isSuccessful()) {
                         Log.d(TAG, "Test notification sent successfully");
                         Toast.makeText(MainActivity.this, "Test notification sent!", Toast.LENGTH_SHORT).show();
@@ -594,7 +598,7 @@ public class MainActivity extends AppCompatActivity {
                 }
                 
                 @Override
-                public void onFailure(retrofit2.Call<Void> call, Throwable t) {
+                public void onFailure(Call<NotificationAckResponse> call, Throwable t) {
                     Log.e(TAG, "Error sending test notification", t);
                     Toast.makeText(MainActivity.this, "Error: " + t.getMessage(), Toast.LENGTH_LONG).show();
                 }
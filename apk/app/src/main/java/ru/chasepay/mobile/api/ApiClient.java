@@ -37,33 +37,46 @@ public class ApiClient {
         return retrofit;
     }
     
+    // A separate instance with the same client setup against another server,
+    // e.g. a local one in tests
+    public static Retrofit forBaseUrl(String baseUrl) {
+        return buildRetrofit(baseUrl);
+    }
+    
     private static Retrofit buildRetrofit() {
+        // Get base URL safely
+        String baseUrl = DEFAULT_BASE_URL;
+        try {
+            if (BuildConfig.BASE_URL != null && !BuildConfig.BASE_URL.isEmpty()) {
+                baseUrl = BuildConfig.BASE_URL;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error accessing BuildConfig.BASE_URL", e);
+        }
+        return buildRetrofit(baseUrl);
+    }
+    
+    private static Retrofit buildRetrofit(String baseUrl) {
         Log.d(TAG, "Building Retrofit instance");
         
         // Use custom logging interceptor
         LoggingInterceptor customLogger = new LoggingInterceptor();
         
-        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
+        // Shares the connection pool and dispatcher with the rest of the app.
+        // The custom trust manager below gives it its own TLS setup, so its
+        // connections are pooled apart from the socket and polling clients.
+        OkHttpClient.Builder clientBuilder = HttpClientProvider.newBuilder()
             .connectTimeout(30, TimeUnit.SECONDS)
             .readTimeout(30, TimeUnit.SECONDS)
             .writeTimeout(30, TimeUnit.SECONDS)
-            .addInterceptor(customLogger);
+            .addInterceptor(customLogger)
+            .addInterceptor(new GzipRequestInterceptor());
         
         // Configure SSL
         configureSsl(clientBuilder);
         
         OkHttpClient client = clientBuilder.build();
         
-        // Get base URL safely
-        String baseUrl = DEFAULT_BASE_URL;
-        try {
-            if (BuildConfig.BASE_URL != null && !BuildConfig.BASE_URL.isEmpty()) {
-                baseUrl = BuildConfig.BASE_URL;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error accessing BuildConfig.BASE_URL", e);
-        }
-        
         // Ensure URL ends with /
         if (!baseUrl.endsWith("/")) {
             baseUrl = baseUrl + "/";
@@ -81,10 +94,11 @@ public class ApiClient {
     private static Retrofit buildFallbackRetrofit() {
         Log.w(TAG, "Building fallback Retrofit instance");
         
-        OkHttpClient client = new OkHttpClient.Builder()
+        OkHttpClient client = HttpClientProvider.newBuilder()
             .connectTimeout(30, TimeUnit.SECONDS)
             .readTimeout(30, TimeUnit.SECONDS)
             .writeTimeout(30, TimeUnit.SECONDS)
+            .addInterceptor(new GzipRequestInterceptor())
             .build();
         
         return new Retrofit.Builder()
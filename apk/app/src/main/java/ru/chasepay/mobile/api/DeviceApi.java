@@ -3,7 +3,10 @@ package ru.chasepay.mobile.api;
 import ru.chasepay.mobile.models.AppVersion;
 import ru.chasepay.mobile.models.ConnectRequest;
 import ru.chasepay.mobile.models.ConnectResponse;
+import ru.chasepay.mobile.models.DeliveryMetricsReport;
 import ru.chasepay.mobile.models.DeviceInfoRequest;
+import ru.chasepay.mobile.models.NotificationAckResponse;
+import ru.chasepay.mobile.models.NotificationBatchRequest;
 import ru.chasepay.mobile.models.NotificationRequest;
 import ru.chasepay.mobile.models.PingResponse;
 
@@ -11,7 +14,9 @@ import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
 import retrofit2.http.Header;
+import retrofit2.http.Headers;
 import retrofit2.http.POST;
+import retrofit2.http.Query;
 
 public interface DeviceApi {
     @GET("device/ping")
@@ -28,8 +33,21 @@ public interface DeviceApi {
                          @Body DeviceInfoRequest request);
     
     @POST("device/notification")
-    Call<Void> sendNotification(@Header("Authorization") String token,
-                               @Body NotificationRequest request);
+    Call<NotificationAckResponse> sendNotification(@Header("Authorization") String token,
+                                                  @Body NotificationRequest request);
+    
+    @Headers("Content-Encoding: gzip")
+    @POST("device/notifications/batch")
+    Call<NotificationAckResponse> sendNotificationBatch(@Header("Authorization") String token,
+                                                       @Body NotificationBatchRequest request);
+    
+    @GET("device/notifications/cursor")
+    Call<NotificationAckResponse> getNotificationCursor(@Header("Authorization") String token,
+                                                       @Query("stream") String stream);
+    
+    @POST("device/metrics")
+    Call<Void> sendMetrics(@Header("Authorization") String token,
+                          @Body DeliveryMetricsReport request);
     
     @GET("app/version")
     Call<AppVersion> getLatestVersion();
@@ -0,0 +1,43 @@
+package ru.chasepay.mobile.api;
+
+import java.io.IOException;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+// Compresses request bodies of calls that declare "Content-Encoding: gzip".
+// Must be added after LoggingInterceptor so the logs keep the plain body.
+public class GzipRequestInterceptor implements Interceptor {
+    
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || !"gzip".equalsIgnoreCase(request.header("Content-Encoding"))) {
+            return chain.proceed(request);
+        }
+        
+        Request compressed = request.newBuilder()
+            .method(request.method(), gzip(body))
+            .build();
+        return chain.proceed(compressed);
+    }
+    
+    private RequestBody gzip(RequestBody body) throws IOException {
+        // Buffer the compressed bytes so the body has a known Content-Length
+        Buffer buffer = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(buffer));
+        body.writeTo(sink);
+        sink.close();
+        
+        MediaType contentType = body.contentType();
+        return RequestBody.create(buffer.readByteString(), contentType);
+    }
+}
\ No newline at end of file
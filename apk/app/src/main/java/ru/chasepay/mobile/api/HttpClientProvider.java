@@ -0,0 +1,99 @@
+package ru.chasepay.mobile.api;
+
+import android.net.Network;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+// Process-wide OkHttp core. Every client in the app is derived from it with
+// newBuilder(), so they all share one connection pool, one dispatcher and its
+// thread pool, and the platform TLS session cache. Derived clients only
+// change timeouts, interceptors and the like.
+public class HttpClientProvider {
+    private static final String TAG = "HttpClientProvider";
+    
+    // Idle connections to the API host are kept long enough to span the gap
+    // between notification bursts without holding sockets forever
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 6;
+    
+    private static OkHttpClient core;
+    // Network new sockets are bound to, null for the system default
+    private static volatile Network boundNetwork;
+    
+    public static synchronized OkHttpClient getCore() {
+        if (core == null) {
+            Log.d(TAG, "Building shared OkHttp core");
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(MAX_REQUESTS);
+            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+            
+            core = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                    .dispatcher(dispatcher)
+                    .socketFactory(new NetworkBoundSocketFactory())
+                    .connectTimeout(15, TimeUnit.SECONDS)
+                    .readTimeout(30, TimeUnit.SECONDS)
+                    .writeTimeout(15, TimeUnit.SECONDS)
+                    .build();
+        }
+        return core;
+    }
+    
+    public static OkHttpClient.Builder newBuilder() {
+        return getCore().newBuilder();
+    }
+    
+    // Called on a network handover. New sockets go out on the given network,
+    // and idle pooled connections, still tied to the old one, are closed so
+    // the next request does not pick a dead socket.
+    public static void bindToNetwork(Network network) {
+        boundNetwork = network;
+        getCore().connectionPool().evictAll();
+        Log.d(TAG, "Sockets bound to " + (network != null ? network : "default network"));
+    }
+    
+    // Resolved per socket, so clients built before a handover follow it too
+    private static class NetworkBoundSocketFactory extends SocketFactory {
+        private SocketFactory delegate() {
+            Network network = boundNetwork;
+            return network != null ? network.getSocketFactory() : SocketFactory.getDefault();
+        }
+        
+        @Override
+        public Socket createSocket() throws IOException {
+            return delegate().createSocket();
+        }
+        
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return delegate().createSocket(host, port);
+        }
+        
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return delegate().createSocket(host, port, localHost, localPort);
+        }
+        
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return delegate().createSocket(host, port);
+        }
+        
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return delegate().createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+package ru.chasepay.mobile.models;
+
+import java.util.List;
+
+public class DeliveryMetricsReport {
+    public long periodStart;
+    public long periodEnd;
+    public long droppedNotifications;
+    public List<StageLatency> stages;
+    
+    public static class StageLatency {
+        public String stage;
+        public long count;
+        public long meanMs;
+        public long p50Ms;
+        public long p90Ms;
+        public long p99Ms;
+        public long maxMs;
+    }
+}
\ No newline at end of file
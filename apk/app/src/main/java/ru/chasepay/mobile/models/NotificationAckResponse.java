@@ -0,0 +1,9 @@
+package ru.chasepay.mobile.models;
+
+public class NotificationAckResponse {
+    public String status;
+    public String message;
+    // Highest sequence number the server has stored with nothing missing
+    // below it, null from servers that do not track sequences
+    public Long ackSeq;
+}
\ No newline at end of file
@@ -0,0 +1,11 @@
+package ru.chasepay.mobile.models;
+
+import java.util.List;
+
+public class NotificationBatchRequest {
+    public List<NotificationRequest> notifications;
+    public String stream;
+    // Every sequence number below this one is settled on the device, either
+    // acknowledged or given up on, and will never be sent
+    public long floorSeq;
+}
\ No newline at end of file
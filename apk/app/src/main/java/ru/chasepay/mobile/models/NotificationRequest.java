@@ -8,4 +8,9 @@ public class NotificationRequest {
     public long timestamp;
     public int priority;
     public String category;
+    // Fields extracted on the device, null when the text could not be parsed
+    public ParsedTransaction parsed;
+    // Per-device delivery sequence, the server drops repeats of (stream, seq)
+    public String stream;
+    public Long seq;
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+package ru.chasepay.mobile.models;
+
+public class ParsedTransaction {
+    public String bank;
+    // Amounts are in minor units (kopecks, cents)
+    public Long amount;
+    public String currency;
+    public String direction;
+    public String cardSuffix;
+    public Long balance;
+    public String counterparty;
+}
\ No newline at end of file
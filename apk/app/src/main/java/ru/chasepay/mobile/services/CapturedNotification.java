@@ -0,0 +1,32 @@
+package ru.chasepay.mobile.services;
+
+// Mutable holder for the fields copied out of a StatusBarNotification.
+// Instances are preallocated by NotificationRingBuffer and reused.
+public class CapturedNotification {
+    public String packageName;
+    public String key;
+    public long postTime;
+    public long when;
+    public CharSequence title;
+    public CharSequence content;
+    public long capturedAt;
+    public boolean bankPackage;
+    
+    void copyFrom(CapturedNotification other) {
+        packageName = other.packageName;
+        key = other.key;
+        postTime = other.postTime;
+        when = other.when;
+        title = other.title;
+        content = other.content;
+        capturedAt = other.capturedAt;
+        bankPackage = other.bankPackage;
+    }
+    
+    void clear() {
+        packageName = null;
+        key = null;
+        title = null;
+        content = null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,201 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+// Estimates the server clock from heartbeat exchanges, the way NTP does. A
+// ping leaves at t0 (device), reaches the server at t1, the pong leaves at t2
+// (server) and arrives at t3 (device):
+//
+//   offset = ((t1 - t0) + (t2 - t3)) / 2      delay = (t3 - t0) - (t2 - t1)
+//
+// The error of one offset is at most delay / 2, so of the recent samples the
+// one with the smallest delay is trusted. The estimate is kept against the
+// monotonic clock, so a user changing the phone time does not disturb it, and
+// the last offset is saved for the next start. Events are stamped with now()
+// or toServerTime() instead of the raw phone clock.
+public class ClockSync {
+    private static final String TAG = "ClockSync";
+    private static final String PREFS_NAME = "ChasePrefs";
+    private static final String KEY_OFFSET = "clock_offset_ms";
+
+    private static final int FILTER_SAMPLES = 8;
+    // Older samples no longer describe a drifting phone clock
+    private static final long MAX_SAMPLE_AGE = TimeUnit.MINUTES.toMillis(30);
+    private static final int RTT_SAMPLES = 64;
+    // Saved offset is rewritten only when it moves this much
+    private static final long PERSIST_STEP = 20;
+
+    private static ClockSync instance;
+
+    private final SharedPreferences prefs;
+    // Per sample: server time minus elapsedRealtime, delay, and when it was taken
+    private final long[] sampleBase = new long[FILTER_SAMPLES];
+    private final long[] sampleDelay = new long[FILTER_SAMPLES];
+    private final long[] sampleAt = new long[FILTER_SAMPLES];
+    private int sampleCount = 0;
+    private int sampleNext = 0;
+    private boolean synced = false;
+    private long base;
+    private long errorBound;
+    private long persistedOffset;
+
+    private final long[] rtts = new long[RTT_SAMPLES];
+    private int rttCount = 0;
+    private int rttNext = 0;
+
+    public static synchronized ClockSync getInstance(Context context) {
+        if (instance == null) {
+            instance = new ClockSync(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ClockSync(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.persistedOffset = prefs.getLong(KEY_OFFSET, 0);
+    }
+
+    // Times in ms since the epoch; serverReceived and serverSent may be equal
+    // when the server only reports one time
+    public synchronized void addSample(long clientSent, long serverReceived, long serverSent, long clientReceived) {
+        long delay = (clientReceived - clientSent) - (serverSent - serverReceived);
+        if (clientReceived < clientSent || delay < 0) {
+            // The phone clock moved during the exchange or the server times are off
+            return;
+        }
+        long offset = ((serverReceived - clientSent) + (serverSent - clientReceived)) / 2;
+        long elapsed = SystemClock.elapsedRealtime();
+        // Anchor to the monotonic clock at the moment the pong arrived
+        long anchor = clientReceived - elapsed;
+        sampleBase[sampleNext] = offset + anchor;
+        sampleDelay[sampleNext] = delay;
+        sampleAt[sampleNext] = elapsed;
+        sampleNext = (sampleNext + 1) % FILTER_SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, FILTER_SAMPLES);
+        select(elapsed);
+    }
+
+    public synchronized void recordRtt(long rttMs) {
+        if (rttMs < 0) {
+            return;
+        }
+        rtts[rttNext] = rttMs;
+        rttNext = (rttNext + 1) % RTT_SAMPLES;
+        rttCount = Math.min(rttCount + 1, RTT_SAMPLES);
+    }
+
+    private void select(long elapsed) {
+        int best = -1;
+        for (int i = 0; i < sampleCount; i++) {
+            if (elapsed - sampleAt[i] > MAX_SAMPLE_AGE) {
+                continue;
+            }
+            if (best < 0 || sampleDelay[i] < sampleDelay[best]) {
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return;
+        }
+        boolean first = !synced;
+        base = sampleBase[best];
+        errorBound = sampleDelay[best] / 2;
+        synced = true;
+
+        long offset = getOffset();
+        if (first) {
+            Log.d(TAG, "Server clock offset " + offset + "ms, +/-" + errorBound + "ms");
+        }
+        if (Math.abs(offset - persistedOffset) >= PERSIST_STEP) {
+            persistedOffset = offset;
+            prefs.edit().putLong(KEY_OFFSET, offset).apply();
+        }
+    }
+
+    // Current server time as best known
+    public synchronized long now() {
+        if (synced) {
+            return SystemClock.elapsedRealtime() + base;
+        }
+        return System.currentTimeMillis() + persistedOffset;
+    }
+
+    // A time read from the phone clock, moved to the server clock
+    public long toServerTime(long deviceTime) {
+        return deviceTime + getOffset();
+    }
+
+    // Server clock minus phone clock, the last saved value until a pong arrives
+    public synchronized long getOffset() {
+        if (synced) {
+            return SystemClock.elapsedRealtime() + base - System.currentTimeMillis();
+        }
+        return persistedOffset;
+    }
+
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    // p in [0, 1], 0 when nothing was measured yet
+    public synchronized long getRttPercentile(double p) {
+        if (rttCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(rtts, rttCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p * rttCount) - 1;
+        return sorted[Math.max(0, Math.min(rttCount - 1, index))];
+    }
+
+    public synchronized String formatSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("Смещение часов сервера: ").append(getOffset()).append(" мс");
+        if (synced) {
+            summary.append(" (±").append(errorBound).append(" мс)\n");
+        } else {
+            summary.append(" (сохранённое)\n");
+        }
+        summary.append("RTT: ");
+        if (rttCount == 0) {
+            summary.append("нет данных\n");
+        } else {
+            summary.append("n=").append(rttCount)
+                    .append(", p50=").append(getRttPercentile(0.5))
+                    .append(", p90=").append(getRttPercentile(0.9))
+                    .append(", p99=").append(getRttPercentile(0.99)).append(" мс\n");
+        }
+        return summary.toString();
+    }
+
+    // Milliseconds since the epoch from "2024-01-01T12:00:00.000Z", 0 when unreadable
+    static long parseServerTime(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        String[] patterns = {"yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", "yyyy-MM-dd'T'HH:mm:ss'Z'"};
+        for (String pattern : patterns) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                Date date = format.parse(value);
+                if (date != null) {
+                    return date.getTime();
+                }
+            } catch (Exception e) {
+                // Try the next pattern
+            }
+        }
+        return 0;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,219 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ru.chasepay.mobile.utils.DeviceUtils;
+
+// Runs commands pushed by the server over the WebSocket or the long-poll.
+// Handlers are looked up by name and run on a small worker pool with a
+// per-command timeout, so a slow handler never blocks a socket callback.
+// When the server gives a requestId exactly one result is sent back with it;
+// a repeated requestId is answered from the cached result instead of
+// running the command twice.
+public class CommandDispatcher {
+    private static final String TAG = "CommandDispatcher";
+
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_ERROR = "error";
+    public static final String STATUS_TIMEOUT = "timeout";
+    public static final String STATUS_UNKNOWN = "unknown_command";
+    public static final String STATUS_BUSY = "busy";
+
+    private static final long DEFAULT_TIMEOUT = 10000;
+    private static final int RECENT_RESULTS = 64;
+    // Let the result go out on the current socket before it is torn down
+    private static final long RECONNECT_DELAY = 1000;
+
+    public interface CommandHandler {
+        // Returns the result payload, or null for none. Throwing reports an error.
+        JSONObject handle(JSONObject args) throws Exception;
+    }
+
+    public interface Responder {
+        void respond(JSONObject result);
+    }
+
+    private static class Registration {
+        final CommandHandler handler;
+        final long timeoutMs;
+
+        Registration(CommandHandler handler, long timeoutMs) {
+            this.handler = handler;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    private static CommandDispatcher instance;
+
+    private final Context context;
+    private final Map<String, Registration> handlers = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timeouts;
+    // requestId -> result, null while the command is still running
+    private final Map<String, JSONObject> recent = new LinkedHashMap<String, JSONObject>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+            return size() > RECENT_RESULTS;
+        }
+    };
+
+    public static synchronized CommandDispatcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommandDispatcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CommandDispatcher(Context context) {
+        this.context = context;
+        this.workers = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(16));
+        this.workers.allowCoreThreadTimeOut(true);
+        this.timeouts = Executors.newSingleThreadScheduledExecutor();
+        registerDefaults();
+    }
+
+    public void register(String command, long timeoutMs, CommandHandler handler) {
+        handlers.put(command, new Registration(handler, timeoutMs));
+    }
+
+    public void register(String command, CommandHandler handler) {
+        register(command, DEFAULT_TIMEOUT, handler);
+    }
+
+    // requestId may be null for fire-and-forget commands, nothing is sent back then
+    public void dispatch(String requestId, String command, JSONObject args, Responder responder) {
+        Log.d(TAG, "Command " + command + " (" + requestId + ")");
+        if (requestId != null) {
+            synchronized (recent) {
+                if (recent.containsKey(requestId)) {
+                    JSONObject cached = recent.get(requestId);
+                    if (cached != null) {
+                        responder.respond(cached);
+                    }
+                    // Still running otherwise, the first delivery's result answers it
+                    return;
+                }
+                recent.put(requestId, null);
+            }
+        }
+
+        long startedAt = System.currentTimeMillis();
+        AtomicBoolean done = new AtomicBoolean(false);
+        Registration registration = handlers.get(command);
+        if (registration == null) {
+            complete(requestId, command, startedAt, done, STATUS_UNKNOWN, null, null, responder);
+            return;
+        }
+
+        JSONObject safeArgs = args != null ? args : new JSONObject();
+        Future<?> future;
+        try {
+            future = workers.submit(() -> {
+                try {
+                    JSONObject result = registration.handler.handle(safeArgs);
+                    complete(requestId, command, startedAt, done, STATUS_OK, result, null, responder);
+                } catch (Exception e) {
+                    Log.e(TAG, "Command " + command + " failed", e);
+                    complete(requestId, command, startedAt, done, STATUS_ERROR, null, e.getMessage(), responder);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            complete(requestId, command, startedAt, done, STATUS_BUSY, null, null, responder);
+            return;
+        }
+
+        timeouts.schedule(() -> {
+            if (complete(requestId, command, startedAt, done, STATUS_TIMEOUT, null, null, responder)) {
+                future.cancel(true);
+            }
+        }, registration.timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // First caller wins, so a command is answered exactly once
+    private boolean complete(String requestId, String command, long startedAt, AtomicBoolean done,
+                             String status, JSONObject result, String error, Responder responder) {
+        if (!done.compareAndSet(false, true)) {
+            return false;
+        }
+        JSONObject response = new JSONObject();
+        try {
+            response.put("type", "command_result");
+            response.put("requestId", requestId);
+            response.put("command", command);
+            response.put("status", status);
+            response.put("durationMs", System.currentTimeMillis() - startedAt);
+            if (result != null) {
+                response.put("result", result);
+            }
+            if (error != null) {
+                response.put("error", error);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to build command result", e);
+        }
+        Log.d(TAG, "Command " + command + " finished: " + status);
+
+        if (requestId == null) {
+            return true;
+        }
+        synchronized (recent) {
+            recent.put(requestId, response);
+        }
+        try {
+            responder.respond(response);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to send command result", e);
+        }
+        return true;
+    }
+
+    private void registerDefaults() {
+        // {minIntervalMs, maxIntervalMs}, same bounds the server sends as heartbeat hints
+        register("set_heartbeat", args -> {
+            HeartbeatPolicy policy = HeartbeatPolicy.getInstance(context);
+            policy.applyServerHints(new JSONObject().put("heartbeat", args));
+            return new JSONObject().put("intervalMs", policy.currentInterval());
+        });
+
+        register("telemetry_snapshot", args -> {
+            UniversalConnectionService connection = UniversalConnectionService.getInstance(context);
+            ConnectionStateMachine.Snapshot state = connection.getStateSnapshot();
+            JSONObject snapshot = new JSONObject();
+            snapshot.put("batteryLevel", DeviceUtils.getBatteryLevel(context));
+            snapshot.put("networkSpeed", DeviceUtils.getNetworkSpeed(context));
+            snapshot.put("connectionMode", connection.getCurrentMode());
+            snapshot.put("connectionState", state.state.name());
+            snapshot.put("stateSince", state.enteredAt);
+            snapshot.put("heartbeatIntervalMs", HeartbeatPolicy.getInstance(context).currentInterval());
+            snapshot.put("outboxSize", NotificationOutbox.getInstance(context).size());
+            snapshot.put("timestamp", ClockSync.getInstance(context).now());
+            return snapshot;
+        });
+
+        register("flush_outbox", args -> {
+            long queued = NotificationOutbox.getInstance(context).size();
+            NotificationUploader.getInstance(context).flushNow();
+            return new JSONObject().put("queued", queued);
+        });
+
+        register("force_reconnect", args -> {
+            UniversalConnectionService.getInstance(context).reconnect(RECONNECT_DELAY);
+            return null;
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,174 @@
+package ru.chasepay.mobile.services;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Connection lifecycle shared by the main looper, the executor and OkHttp
+// callback threads. Every change is a compare-and-set against the current
+// state, so two threads racing to (re)connect cannot both win, and anything
+// not in the transition table is refused instead of silently applied.
+public class ConnectionStateMachine {
+    private static final String TAG = "ConnectionState";
+
+    public enum State {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        DEGRADED,
+        BACKING_OFF,
+        STOPPED
+    }
+
+    public interface Listener {
+        // Called on the thread that made the transition, keep it short
+        void onTransition(State from, State to, String reason);
+    }
+
+    private static final int STATES = State.values().length;
+
+    private final String name;
+    // State and the time it was entered swap together, so a snapshot never mixes two transitions
+    private final AtomicReference<Current> current = new AtomicReference<>(new Current(State.IDLE));
+    private final AtomicLongArray transitionCounts = new AtomicLongArray(STATES * STATES);
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public ConnectionStateMachine(String name) {
+        this.name = name;
+    }
+
+    public static boolean isAllowed(State from, State to) {
+        switch (from) {
+            case IDLE:
+            case STOPPED:
+                return to == State.CONNECTING;
+            case CONNECTING:
+                return to == State.CONNECTED || to == State.BACKING_OFF || to == State.STOPPED;
+            case CONNECTED:
+                return to == State.DEGRADED || to == State.CONNECTING || to == State.BACKING_OFF || to == State.STOPPED;
+            case DEGRADED:
+                return to == State.CONNECTED || to == State.CONNECTING || to == State.BACKING_OFF || to == State.STOPPED;
+            case BACKING_OFF:
+                return to == State.CONNECTING || to == State.CONNECTED || to == State.STOPPED;
+            default:
+                return false;
+        }
+    }
+
+    // Moves to the given state only if currently in the expected one
+    public boolean transition(State expected, State to, String reason) {
+        if (!isAllowed(expected, to)) {
+            return false;
+        }
+        while (true) {
+            Current from = current.get();
+            if (from.state != expected) {
+                return false;
+            }
+            if (current.compareAndSet(from, new Current(to))) {
+                onEntered(expected, to, reason);
+                return true;
+            }
+        }
+    }
+
+    // Moves to the given state from whatever the current one is, if the table allows it
+    public boolean moveTo(State to, String reason) {
+        while (true) {
+            Current from = current.get();
+            if (from.state == to || !isAllowed(from.state, to)) {
+                return false;
+            }
+            if (current.compareAndSet(from, new Current(to))) {
+                onEntered(from.state, to, reason);
+                return true;
+            }
+        }
+    }
+
+    private void onEntered(State from, State to, String reason) {
+        transitionCounts.incrementAndGet(from.ordinal() * STATES + to.ordinal());
+        Log.d(TAG, name + ": " + from + " -> " + to + " (" + reason + ")");
+        for (Listener listener : listeners) {
+            try {
+                listener.onTransition(from, to, reason);
+            } catch (Exception e) {
+                Log.e(TAG, "Transition listener failed", e);
+            }
+        }
+    }
+
+    public State getState() {
+        return current.get().state;
+    }
+
+    // Anything between start and stop, including backing off
+    public boolean isActive() {
+        State state = current.get().state;
+        return state != State.IDLE && state != State.STOPPED;
+    }
+
+    public long getTransitionCount(State from, State to) {
+        return transitionCounts.get(from.ordinal() * STATES + to.ordinal());
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Snapshot snapshot() {
+        Current now = current.get();
+        long[] counts = new long[STATES * STATES];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = transitionCounts.get(i);
+        }
+        return new Snapshot(now.state, now.enteredAt, counts);
+    }
+
+    private static final class Current {
+        final State state;
+        final long enteredAt;
+
+        Current(State state) {
+            this.state = state;
+            this.enteredAt = System.currentTimeMillis();
+        }
+    }
+
+    public static class Snapshot {
+        public final State state;
+        public final long enteredAt;
+        private final long[] counts;
+
+        Snapshot(State state, long enteredAt, long[] counts) {
+            this.state = state;
+            this.enteredAt = enteredAt;
+            this.counts = counts;
+        }
+
+        public long getCount(State from, State to) {
+            return counts[from.ordinal() * STATES + to.ordinal()];
+        }
+
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(state).append(" for ")
+              .append((System.currentTimeMillis() - enteredAt) / 1000).append("s\n");
+            for (State from : State.values()) {
+                for (State to : State.values()) {
+                    long count = getCount(from, to);
+                    if (count > 0) {
+                        sb.append(from).append(" -> ").append(to).append(": ").append(count).append("\n");
+                    }
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
\ No newline at end of file
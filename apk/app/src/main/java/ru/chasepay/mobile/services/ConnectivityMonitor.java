@@ -0,0 +1,133 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ru.chasepay.mobile.api.HttpClientProvider;
+
+// Follows the default network through ConnectivityManager callbacks, which
+// arrive the moment Wi-Fi and cellular hand over instead of whenever the old
+// sockets finally time out. On every switch new sockets are bound to the new
+// network, idle ones on the old network are dropped, and listeners reconnect
+// right away.
+public class ConnectivityMonitor {
+    private static final String TAG = "ConnectivityMonitor";
+
+    public interface Listener {
+        // The default network changed, or came back after being lost or unvalidated
+        void onNetworkChanged(Network network);
+        void onNetworkLost();
+    }
+
+    private static ConnectivityMonitor instance;
+
+    private final ConnectivityManager connectivityManager;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Network currentNetwork;
+    // Null until the first capabilities callback for the current network
+    private volatile Boolean validated;
+    // The first callback after registering only reports the network we already use
+    private volatile boolean initialized = false;
+    private boolean registered = false;
+
+    private final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            Network previous = currentNetwork;
+            if (network.equals(previous)) {
+                return;
+            }
+            Log.d(TAG, "Default network is now " + network + " (was " + previous + ")");
+            currentNetwork = network;
+            validated = null;
+            HttpClientProvider.bindToNetwork(network);
+            if (initialized) {
+                for (Listener listener : listeners) {
+                    listener.onNetworkChanged(network);
+                }
+            }
+            initialized = true;
+        }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            if (!network.equals(currentNetwork)) {
+                return;
+            }
+            boolean nowValidated = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+            Boolean wasValidated = validated;
+            validated = nowValidated;
+            if (Boolean.FALSE.equals(wasValidated) && nowValidated) {
+                // Captive portal passed or the uplink recovered, sockets opened meanwhile went nowhere
+                Log.d(TAG, "Network " + network + " validated");
+                for (Listener listener : listeners) {
+                    listener.onNetworkChanged(network);
+                }
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            if (!network.equals(currentNetwork)) {
+                return;
+            }
+            Log.d(TAG, "Default network " + network + " lost");
+            currentNetwork = null;
+            validated = null;
+            initialized = true;
+            HttpClientProvider.bindToNetwork(null);
+            for (Listener listener : listeners) {
+                listener.onNetworkLost();
+            }
+        }
+    };
+
+    public static synchronized ConnectivityMonitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConnectivityMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ConnectivityMonitor(Context context) {
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public synchronized void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+        if (!registered) {
+            try {
+                connectivityManager.registerDefaultNetworkCallback(callback);
+                registered = true;
+                Log.d(TAG, "Watching default network");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to register network callback", e);
+            }
+        }
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+        if (registered && listeners.isEmpty()) {
+            try {
+                connectivityManager.unregisterNetworkCallback(callback);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to unregister network callback", e);
+            }
+            registered = false;
+            initialized = false;
+            currentNetwork = null;
+            validated = null;
+            HttpClientProvider.bindToNetwork(null);
+        }
+    }
+
+    public Network getCurrentNetwork() {
+        return currentNetwork;
+    }
+}
\ No newline at end of file
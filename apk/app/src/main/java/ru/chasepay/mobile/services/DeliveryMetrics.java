@@ -0,0 +1,210 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Response;
+import ru.chasepay.mobile.api.ApiClient;
+import ru.chasepay.mobile.api.DeviceApi;
+import ru.chasepay.mobile.models.DeliveryMetricsReport;
+import ru.chasepay.mobile.utils.LatencyHistogram;
+
+// Per-stage latency of notification delivery, from the moment the bank app
+// posted the notification to the moment the server accepted it. Kept in
+// memory since process start for the debug screen, and reported to the
+// server periodically.
+public class DeliveryMetrics {
+    private static final String TAG = "DeliveryMetrics";
+    private static final String PREFS_NAME = "ChasePrefs";
+    private static final String KEY_DEVICE_TOKEN = "device_token";
+    
+    private static final long REPORT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    
+    public enum Stage {
+        // sbn post time -> copied off the listener callback
+        CAPTURED("posted→captured"),
+        // -> passed filter and dedup on the pipeline thread
+        FILTERED("captured→filtered"),
+        // -> written to the outbox
+        ENQUEUED("filtered→enqueued"),
+        // -> upload request started, includes retries and lane deferral
+        SENT("enqueued→sent"),
+        // -> server responded with success
+        ACKED("sent→acked"),
+        // sbn post time -> server responded with success
+        END_TO_END("posted→acked");
+        
+        public final String label;
+        
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+    
+    private final SharedPreferences prefs;
+    private final DeviceApi deviceApi;
+    private final Map<Stage, LatencyHistogram> sinceStart = new EnumMap<>(Stage.class);
+    // Collected since the last successful report
+    private final Map<Stage, LatencyHistogram> window = new EnumMap<>(Stage.class);
+    private final AtomicLong droppedSinceStart = new AtomicLong();
+    private final AtomicLong droppedInWindow = new AtomicLong();
+    
+    private ScheduledExecutorService reporter;
+    private long windowStart = System.currentTimeMillis();
+    // Cleared when the server does not know the metrics endpoint
+    private volatile boolean reportingSupported = true;
+    
+    private static DeliveryMetrics instance;
+    
+    public static synchronized DeliveryMetrics getInstance(Context context) {
+        if (instance == null) {
+            instance = new DeliveryMetrics(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    private DeliveryMetrics(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                ApiClient.getInstance().create(DeviceApi.class));
+    }
+    
+    DeliveryMetrics(SharedPreferences prefs, DeviceApi deviceApi) {
+        this.prefs = prefs;
+        this.deviceApi = deviceApi;
+        for (Stage stage : Stage.values()) {
+            sinceStart.put(stage, new LatencyHistogram());
+            window.put(stage, new LatencyHistogram());
+        }
+    }
+    
+    public void record(Stage stage, long fromMs, long toMs) {
+        if (fromMs <= 0) {
+            // Entries queued before stamps existed
+            return;
+        }
+        long latency = toMs - fromMs;
+        sinceStart.get(stage).record(latency);
+        window.get(stage).record(latency);
+    }
+    
+    public void recordDropped() {
+        droppedSinceStart.incrementAndGet();
+        droppedInWindow.incrementAndGet();
+    }
+    
+    public synchronized void startReporting() {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleWithFixedDelay(this::report, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    // A report already under way is let finish, the window it did not send stays for the next start
+    public synchronized void stopReporting() {
+        if (reporter == null) {
+            return;
+        }
+        reporter.shutdown();
+        reporter = null;
+    }
+    
+    // Human readable summary for the debug screen
+    public String formatSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = sinceStart.get(stage);
+            summary.append(stage.label).append(": ");
+            if (histogram.getCount() == 0) {
+                summary.append("нет данных\n");
+                continue;
+            }
+            summary.append("n=").append(histogram.getCount())
+                    .append(", p50=").append(histogram.getPercentile(0.5))
+                    .append(", p90=").append(histogram.getPercentile(0.9))
+                    .append(", p99=").append(histogram.getPercentile(0.99))
+                    .append(", max=").append(histogram.getMax()).append(" мс\n");
+        }
+        summary.append("Отброшено при переполнении: ").append(droppedSinceStart.get()).append("\n");
+        return summary.toString();
+    }
+    
+    private void report() {
+        if (!reportingSupported) {
+            return;
+        }
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (deviceToken == null) {
+            return;
+        }
+        
+        long periodEnd = System.currentTimeMillis();
+        Map<Stage, LatencyHistogram> snapshot = new EnumMap<>(Stage.class);
+        long total = 0;
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = window.get(stage).drain();
+            snapshot.put(stage, histogram);
+            total += histogram.getCount();
+        }
+        long dropped = droppedInWindow.getAndSet(0);
+        if (total == 0 && dropped == 0) {
+            return;
+        }
+        
+        DeliveryMetricsReport report = new DeliveryMetricsReport();
+        report.periodStart = windowStart;
+        report.periodEnd = periodEnd;
+        report.droppedNotifications = dropped;
+        report.stages = new ArrayList<>();
+        for (Map.Entry<Stage, LatencyHistogram> entry : snapshot.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            DeliveryMetricsReport.StageLatency latency = new DeliveryMetricsReport.StageLatency();
+            latency.stage = entry.getKey().name().toLowerCase();
+            latency.count = histogram.getCount();
+            latency.meanMs = histogram.getMean();
+            latency.p50Ms = histogram.getPercentile(0.5);
+            latency.p90Ms = histogram.getPercentile(0.9);
+            latency.p99Ms = histogram.getPercentile(0.99);
+            latency.maxMs = histogram.getMax();
+            report.stages.add(latency);
+        }
+        
+        boolean sent = false;
+        try {
+            Response<Void> response = deviceApi.sendMetrics("Bearer " + deviceToken, report).execute();
+            if (response.isSuccessful()) {
+                sent = true;
+            } else if (response.code() == 404 || response.code() == 405 || response.code() == 501) {
+                Log.w(TAG, "Metrics endpoint not available (" + response.code() + "), reporting disabled");
+                reportingSupported = false;
+                return;
+            } else {
+                Log.e(TAG, "Failed to report delivery metrics: " + response.code());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reporting delivery metrics: " + e.getMessage());
+        }
+        
+        if (sent) {
+            windowStart = periodEnd;
+        } else {
+            // Keep the samples for the next attempt
+            for (Map.Entry<Stage, LatencyHistogram> entry : snapshot.entrySet()) {
+                window.get(entry.getKey()).merge(entry.getValue());
+            }
+            droppedInWindow.addAndGet(dropped);
+        }
+    }
+}
\ No newline at end of file
@@ -2,8 +2,6 @@ package ru.chasepay.mobile.services;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import org.json.JSONObject;
@@ -16,6 +14,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import ru.chasepay.mobile.api.HttpClientProvider;
 import ru.chasepay.mobile.utils.DeviceUtils;
 
 public class DeviceHttpPingService {
@@ -23,13 +22,9 @@ public class DeviceHttpPingService {
     private static final String PREFS_NAME = "ChasePrefs";
     private static final String KEY_DEVICE_TOKEN = "device_token";
     
-    // Ping every 5 seconds via HTTP
-    private static final long PING_INTERVAL = TimeUnit.SECONDS.toMillis(5);
-    
     private Context context;
     private OkHttpClient client;
-    private Handler handler;
-    private Runnable pingRunnable;
+    private HeartbeatScheduler heartbeat;
     private SharedPreferences prefs;
     private boolean isRunning = false;
     
@@ -45,9 +40,9 @@ public class DeviceHttpPingService {
     private DeviceHttpPingService(Context context) {
         this.context = context;
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        this.handler = new Handler(Looper.getMainLooper());
+        this.heartbeat = new HeartbeatScheduler(context, 1, this::sendHttpPing);
         
-        this.client = new OkHttpClient.Builder()
+        this.client = HttpClientProvider.newBuilder()
                 .connectTimeout(10, TimeUnit.SECONDS)
                 .readTimeout(10, TimeUnit.SECONDS)
                 .writeTimeout(10, TimeUnit.SECONDS)
@@ -69,31 +64,14 @@ public class DeviceHttpPingService {
         Log.d(TAG, "Starting HTTP ping service");
         isRunning = true;
         
-        startPingLoop();
+        heartbeat.start();
     }
     
     public void stopPingService() {
         Log.d(TAG, "Stopping HTTP ping service");
         isRunning = false;
         
-        if (handler != null && pingRunnable != null) {
-            handler.removeCallbacks(pingRunnable);
-        }
-    }
-    
-    private void startPingLoop() {
-        pingRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (isRunning) {
-                    sendHttpPing();
-                    handler.postDelayed(this, PING_INTERVAL);
-                }
-            }
-        };
-        
-        // Start pinging immediately
-        handler.post(pingRunnable);
+        heartbeat.stop();
     }
     
     private void sendHttpPing() {
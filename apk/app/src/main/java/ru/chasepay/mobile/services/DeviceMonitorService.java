@@ -35,13 +35,14 @@ public class DeviceMonitorService extends Service {
     private static final String TAG = "DeviceMonitor";
     private static final String CHANNEL_ID = "chase_monitor";
     private static final int NOTIFICATION_ID = 1;
-    private static final long UPDATE_INTERVAL = TimeUnit.SECONDS.toMillis(2);
+    // Device info goes out at twice the heartbeat interval, liveness is the heartbeat's job
+    private static final long UPDATE_INTERVAL_SCALE = 2;
     private static final long UPDATE_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(30);
     
     private DeviceApi deviceApi;
     private SharedPreferences prefs;
     private Handler handler;
-    private Runnable updateRunnable;
+    private HeartbeatScheduler updateScheduler;
     private Runnable updateCheckRunnable;
     private PowerManager.WakeLock wakeLock;
     
@@ -109,14 +110,8 @@ public class DeviceMonitorService extends Service {
     }
     
     private void startDeviceUpdates() {
-        updateRunnable = new Runnable() {
-            @Override
-            public void run() {
-                sendDeviceUpdate();
-                handler.postDelayed(this, UPDATE_INTERVAL);
-            }
-        };
-        handler.post(updateRunnable);
+        updateScheduler = new HeartbeatScheduler(this, UPDATE_INTERVAL_SCALE, this::sendDeviceUpdate);
+        updateScheduler.start();
     }
     
     private void startUpdateChecks() {
@@ -142,7 +137,7 @@ public class DeviceMonitorService extends Service {
         request.isCharging = DeviceUtils.isCharging(this);
         request.networkInfo = DeviceUtils.getNetworkInfo(this);
         request.networkSpeed = DeviceUtils.getNetworkSpeed(this);
-        request.timestamp = System.currentTimeMillis();
+        request.timestamp = ClockSync.getInstance(this).now();
         request.deviceModel = DeviceUtils.getDeviceModel();
         request.androidVersion = DeviceUtils.getAndroidVersion();
         request.appVersion = DeviceUtils.getAppVersion(this);
@@ -177,10 +172,10 @@ public class DeviceMonitorService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (updateScheduler != null) {
+            updateScheduler.stop();
+        }
         if (handler != null) {
-            if (updateRunnable != null) {
-                handler.removeCallbacks(updateRunnable);
-            }
             if (updateCheckRunnable != null) {
                 handler.removeCallbacks(updateCheckRunnable);
             }
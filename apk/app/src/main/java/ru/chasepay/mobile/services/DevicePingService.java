@@ -7,33 +7,92 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.ByteString;
+import ru.chasepay.mobile.api.HttpClientProvider;
+import ru.chasepay.mobile.models.NotificationAckResponse;
+import ru.chasepay.mobile.models.NotificationBatchRequest;
 import ru.chasepay.mobile.utils.DeviceUtils;
 
-public class DevicePingService extends WebSocketListener {
+public class DevicePingService extends WebSocketListener implements NotificationSocket {
     private static final String TAG = "DevicePingService";
     private static final String PREFS_NAME = "ChasePrefs";
     private static final String KEY_DEVICE_TOKEN = "device_token";
     
-    // Change to every 1 second
-    private static final long PING_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    // Advertised in pongs by servers that accept notification frames
+    private static final String CAPABILITY_NOTIFICATIONS = "notifications";
+    // Advertised in auth_ok by servers that accept HeartbeatFrame pings
+    private static final String CAPABILITY_BINARY_HEARTBEAT = "binary-heartbeat-v1";
+    // Advertised in auth_ok by servers that track presence from WebSocket
+    // control-frame pongs, so app-level pings are not needed for liveness
+    private static final String CAPABILITY_TRANSPORT_LIVENESS = "transport-liveness";
+    
+    // OkHttp sends a ping control frame this often and fails the socket when
+    // the pong for the previous one has not arrived
+    private static final String KEY_TRANSPORT_PING_INTERVAL = "ws_transport_ping_interval_ms";
+    private static final long DEFAULT_TRANSPORT_PING_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    // Consecutive missed-pong failures before the connection is reported unhealthy
+    private static final String KEY_TRANSPORT_FAILURE_THRESHOLD = "ws_transport_failure_threshold";
+    private static final int DEFAULT_TRANSPORT_FAILURE_THRESHOLD = 2;
+    // A pong within one heartbeat interval plus this grace means the socket is carrying traffic
+    private static final long PONG_GRACE = TimeUnit.SECONDS.toMillis(2);
+    // A heartbeat this late means the device slept and the socket is likely dead
+    private static final long MAX_HEARTBEAT_LATENESS = TimeUnit.SECONDS.toMillis(10);
+    // RFC 6455 close codes a server sends when it is restarting or shedding load
+    private static final int CLOSE_GOING_AWAY = 1001;
+    private static final int CLOSE_SERVICE_RESTART = 1012;
+    private static final int CLOSE_TRY_AGAIN_LATER = 1013;
     
     private Context context;
-    private WebSocket webSocket;
+    private volatile WebSocket webSocket;
     private OkHttpClient client;
     private Handler handler;
-    private Runnable pingRunnable;
+    private HeartbeatScheduler heartbeat;
+    private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy("WebSocket");
+    // At most one reconnect is ever queued, however many callbacks report the failure
+    private Runnable pendingReconnect;
+    private HeartbeatPolicy heartbeatPolicy;
+    private ClockSync clockSync;
     private SharedPreferences prefs;
-    private boolean isRunning = false;
-    private long lastPingTime = 0;
+    private volatile boolean isRunning = false;
+    private volatile long lastPingTime = 0;
+    private volatile long lastPongTime = 0;
+    private volatile boolean notificationsSupported = false;
+    // Set once the server confirmed the token sent at socket open
+    private volatile boolean sessionAuthenticated = false;
+    private volatile boolean binaryHeartbeat = false;
+    private volatile boolean transportLiveness = false;
+    private final AtomicInteger consecutivePongTimeouts = new AtomicInteger();
+    private volatile int lastSentBatteryLevel = -1;
+    private volatile int lastSentNetworkSpeed = -1;
+    private volatile long lastPingSeq = 0;
+    private volatile long sessionStart = 0;
+    private long pingSeq = 0;
+    private final byte[] frameBuffer = new byte[HeartbeatFrame.MAX_HEARTBEAT_SIZE];
+    
+    private final Gson gson = new Gson();
+    private final AtomicLong frameIds = new AtomicLong();
+    private final Map<String, PendingAck> pendingAcks = new ConcurrentHashMap<>();
     
     private static DevicePingService instance;
     
@@ -48,8 +107,11 @@ public class DevicePingService extends WebSocketListener {
         this.context = context;
         this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         this.handler = new Handler(Looper.getMainLooper());
+        this.heartbeatPolicy = HeartbeatPolicy.getInstance(context);
+        this.clockSync = ClockSync.getInstance(context);
+        this.heartbeat = new HeartbeatScheduler(context, 1, this::onHeartbeat);
         
-        this.client = new OkHttpClient.Builder()
+        this.client = HttpClientProvider.newBuilder()
                 .connectTimeout(10, TimeUnit.SECONDS)
                 .readTimeout(0, TimeUnit.MILLISECONDS) // Keep connection open
                 .writeTimeout(10, TimeUnit.SECONDS)
@@ -71,22 +133,79 @@ public class DevicePingService extends WebSocketListener {
         Log.d(TAG, "Starting ping service");
         isRunning = true;
         
-        connectWebSocket();
-        startPingLoop();
+        if (reconnectPolicy.isCircuitOpen()) {
+            scheduleConnect(reconnectPolicy.getCircuitRemaining());
+        } else {
+            connectWebSocket();
+        }
+        heartbeat.start();
     }
     
     public void stopPingService() {
         Log.d(TAG, "Stopping ping service");
         isRunning = false;
         
-        if (handler != null && pingRunnable != null) {
-            handler.removeCallbacks(pingRunnable);
-        }
+        heartbeat.stop();
+        cancelPendingReconnect();
         
         if (webSocket != null) {
             webSocket.close(1000, "Service stopped");
             webSocket = null;
         }
+        onSocketGone();
+    }
+    
+    // True when the server accepts notification frames and the socket answered
+    // recently. With transport liveness app pings are rare, an open socket is
+    // proof enough since OkHttp fails it when a control-frame pong is missed.
+    public boolean canCarryNotifications() {
+        return isRunning && webSocket != null && notificationsSupported
+                && (transportLiveness
+                        || System.currentTimeMillis() - lastPongTime < heartbeatPolicy.currentInterval() + PONG_GRACE);
+    }
+    
+    // Sends a ping now, or as soon as the minimum heartbeat interval allows
+    public void probeNow() {
+        heartbeat.probeNow();
+    }
+    
+    // Sends a batch as a "notifications" frame and blocks until the matching
+    // "notification_ack" arrives. Throws if the frame could not be written or
+    // was not acknowledged in time; the caller then falls back to HTTP.
+    public NotificationAckResponse sendNotifications(NotificationBatchRequest batch, long timeoutMs) throws IOException {
+        WebSocket socket = webSocket;
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (socket == null || deviceToken == null) {
+            throw new IOException("WebSocket not connected");
+        }
+        
+        String id = String.valueOf(frameIds.incrementAndGet());
+        JsonObject frame = gson.toJsonTree(batch).getAsJsonObject();
+        frame.addProperty("type", "notifications");
+        frame.addProperty("id", id);
+        if (!sessionAuthenticated) {
+            frame.addProperty("deviceToken", deviceToken);
+        }
+        
+        PendingAck pending = new PendingAck();
+        pendingAcks.put(id, pending);
+        try {
+            if (!socket.send(frame.toString())) {
+                throw new IOException("WebSocket rejected notification frame");
+            }
+            if (!pending.latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No notification ack within " + timeoutMs + "ms");
+            }
+            if (pending.ack == null) {
+                throw new IOException("WebSocket closed before notification ack");
+            }
+            return pending.ack;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for notification ack");
+        } finally {
+            pendingAcks.remove(id);
+        }
     }
     
     private void connectWebSocket() {
@@ -97,12 +216,22 @@ public class DevicePingService extends WebSocketListener {
             String wsUrl = wsBaseUrl + "/device-ping";
             
             Log.d(TAG, "Connecting to WebSocket: " + wsUrl);
+            reconnectPolicy.seed(prefs.getString(KEY_DEVICE_TOKEN, null));
             
             Request request = new Request.Builder()
                     .url(wsUrl)
                     .build();
             
-            webSocket = client.newWebSocket(request, this);
+            // Control-frame pings detect dead sockets at the transport level,
+            // every compliant server answers them without app code
+            long transportPingInterval = prefs.getLong(KEY_TRANSPORT_PING_INTERVAL, DEFAULT_TRANSPORT_PING_INTERVAL);
+            synchronized (this) {
+                // Callbacks may run before newWebSocket() returns, isCurrent() waits for this
+                webSocket = client.newBuilder()
+                        .pingInterval(transportPingInterval, TimeUnit.MILLISECONDS)
+                        .build()
+                        .newWebSocket(request, this);
+            }
             
         } catch (Exception e) {
             Log.e(TAG, "Error connecting WebSocket", e);
@@ -110,44 +239,68 @@ public class DevicePingService extends WebSocketListener {
         }
     }
     
-    private void startPingLoop() {
-        pingRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (isRunning && webSocket != null) {
-                    // Check if we haven't sent a ping in a while (network might be suspended)
-                    long currentTime = System.currentTimeMillis();
-                    if (lastPingTime > 0 && currentTime - lastPingTime > 10000) {
-                        Log.w(TAG, "Ping delayed by " + (currentTime - lastPingTime) + "ms, reconnecting...");
-                        reconnectWebSocket();
-                    } else {
-                        sendPing();
-                    }
-                    handler.postDelayed(this, PING_INTERVAL);
-                }
-            }
-        };
-        
-        // Start pinging immediately
-        handler.post(pingRunnable);
+    private void onHeartbeat() {
+        if (!isRunning || webSocket == null) {
+            return;
+        }
+        // Check if the heartbeat ran much later than planned (network might be suspended)
+        long lateness = heartbeat.getLastLateness();
+        if (lastPingTime > 0 && lateness > MAX_HEARTBEAT_LATENESS) {
+            Log.w(TAG, "Ping delayed by " + lateness + "ms, reconnecting...");
+            reconnectWebSocket();
+        } else if (transportLiveness) {
+            sendTelemetryIfChanged();
+        } else {
+            sendPing();
+        }
+    }
+    
+    // In transport liveness mode the socket being open is the liveness signal,
+    // OkHttp fails it as soon as a control-frame pong goes missing. The app
+    // only speaks up when the telemetry it reports has changed.
+    private void sendTelemetryIfChanged() {
+        if (getBatteryLevel() != lastSentBatteryLevel || getNetworkSpeed() != lastSentNetworkSpeed) {
+            sendPing();
+        } else {
+            UniversalConnectionService.getInstance(context).notifySuccessfulConnection();
+        }
     }
     
     private void sendPing() {
         try {
             String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
-            if (deviceToken == null || webSocket == null) {
+            WebSocket socket = webSocket;
+            if (deviceToken == null || socket == null) {
                 return;
             }
             
-            JSONObject pingData = new JSONObject();
-            pingData.put("type", "ping");
-            pingData.put("deviceToken", deviceToken);
-            pingData.put("batteryLevel", getBatteryLevel());
-            pingData.put("networkSpeed", getNetworkSpeed());
-            pingData.put("timestamp", System.currentTimeMillis());
+            int batteryLevel = getBatteryLevel();
+            int networkSpeed = getNetworkSpeed();
+            lastSentBatteryLevel = batteryLevel;
+            lastSentNetworkSpeed = networkSpeed;
             
-            lastPingTime = System.currentTimeMillis();
-            boolean sent = webSocket.send(pingData.toString());
+            boolean sent;
+            if (binaryHeartbeat) {
+                lastPingTime = System.currentTimeMillis();
+                lastPingSeq = ++pingSeq;
+                int length = HeartbeatFrame.encodeHeartbeat(frameBuffer, pingSeq,
+                        batteryLevel, networkSpeed, lastPingTime - sessionStart);
+                sent = socket.send(ByteString.of(frameBuffer, 0, length));
+            } else {
+                // Servers without binary heartbeat support get the JSON ping with the token
+                lastPingTime = System.currentTimeMillis();
+                lastPingSeq = 0;
+                JSONObject pingData = new JSONObject();
+                pingData.put("type", "ping");
+                pingData.put("deviceToken", deviceToken);
+                pingData.put("batteryLevel", batteryLevel);
+                pingData.put("networkSpeed", networkSpeed);
+                pingData.put("timestamp", clockSync.toServerTime(lastPingTime));
+                // Raw phone time, echoed back so the pong can be matched to this ping
+                pingData.put("clientSentAt", lastPingTime);
+                
+                sent = socket.send(pingData.toString());
+            }
             if (!sent) {
                 Log.w(TAG, "Failed to send ping - WebSocket not ready");
                 reconnectWebSocket();
@@ -181,13 +334,26 @@ public class DevicePingService extends WebSocketListener {
     
     @Override
     public void onOpen(WebSocket webSocket, Response response) {
+        if (!isCurrent(webSocket)) {
+            // Opened after we gave up on it, its close is already under way
+            return;
+        }
         Log.d(TAG, "WebSocket connected");
+        // Capabilities are re-learned on every connection
+        notificationsSupported = false;
+        sessionAuthenticated = false;
+        binaryHeartbeat = false;
+        sendAuth(webSocket);
         // Notify universal service about successful connection
-        UniversalConnectionService.getInstance(context).notifySuccessfulConnection();
+        UniversalConnectionService.getInstance(context).notifyWebSocketOpened();
     }
     
     @Override
     public void onMessage(WebSocket webSocket, String text) {
+        if (!isCurrent(webSocket)) {
+            // A late auth_ok or ack of a replaced socket belongs to another session
+            return;
+        }
         try {
             JSONObject response = new JSONObject(text);
             String type = response.getString("type");
@@ -195,18 +361,137 @@ public class DevicePingService extends WebSocketListener {
             if ("pong".equals(type)) {
                 // Server responded to our ping
                 Log.d(TAG, "Received pong from server");
-                // Notify universal service about successful ping
+                heartbeatPolicy.applyServerHints(response);
+                if (response.has("capabilities")) {
+                    notificationsSupported = hasCapability(response, CAPABILITY_NOTIFICATIONS);
+                }
+                boolean matches = response.optLong("clientSentAt", lastPingTime) == lastPingTime;
+                if (response.has("serverReceivedAt") && response.has("serverSentAt")) {
+                    onPong(matches, response.getLong("serverReceivedAt"), response.getLong("serverSentAt"));
+                } else {
+                    // Older servers only stamp the pong, when it left is as close as we get
+                    long serverTime = ClockSync.parseServerTime(response.optString("timestamp", null));
+                    onPong(matches, serverTime > 0 ? serverTime : -1, serverTime > 0 ? serverTime : -1);
+                }
+            } else if ("auth_ok".equals(type)) {
+                sessionAuthenticated = true;
+                binaryHeartbeat = hasCapability(response, CAPABILITY_BINARY_HEARTBEAT);
+                transportLiveness = hasCapability(response, CAPABILITY_TRANSPORT_LIVENESS);
+                if (response.has("transportPingIntervalMs")) {
+                    // Takes effect on the next connection, OkHttp fixes it per socket
+                    prefs.edit().putLong(KEY_TRANSPORT_PING_INTERVAL, response.getLong("transportPingIntervalMs")).apply();
+                }
+                consecutivePongTimeouts.set(0);
+                reconnectPolicy.onSuccess();
+                notificationsSupported = hasCapability(response, CAPABILITY_NOTIFICATIONS);
+                heartbeatPolicy.applyServerHints(response);
+                Log.d(TAG, "Session authenticated, binary heartbeat: " + binaryHeartbeat
+                        + ", transport liveness: " + transportLiveness);
+                // Report the current telemetry once, later only changes are sent
+                lastSentBatteryLevel = -1;
+                UniversalConnectionService.getInstance(context).notifyWebSocketConfirmed();
                 UniversalConnectionService.getInstance(context).notifySuccessfulConnection();
+            } else if ("notification_ack".equals(type)) {
+                PendingAck pending = pendingAcks.get(response.optString("id"));
+                if (pending != null) {
+                    pending.ack = gson.fromJson(text, NotificationAckResponse.class);
+                    pending.latch.countDown();
+                }
+            } else if ("command".equals(type)) {
+                CommandDispatcher.getInstance(context).dispatch(response.optString("requestId", null),
+                        response.getString("command"), response.optJSONObject("data"), this::sendCommandResult);
             } else if ("error".equals(type)) {
                 String message = response.optString("message", "Unknown error");
                 Log.e(TAG, "Server error: " + message);
-                scheduleReconnect();
+                // An overloaded server may give a delay and/or a reconnect slot of slotMs each
+                long retryAfter = response.optLong("retryAfterMs", -1);
+                if (response.has("slot")) {
+                    retryAfter = Math.max(0, retryAfter) + response.optLong("slot") * response.optLong("slotMs", 1000);
+                }
+                if (retryAfter >= 0) {
+                    reconnectPolicy.deferFor(retryAfter);
+                }
+                reconnectWebSocket();
             }
         } catch (Exception e) {
             Log.e(TAG, "Error processing WebSocket message", e);
         }
     }
     
+    // Sent on whatever socket is current; lost if there is none, the server times the command out
+    private void sendCommandResult(JSONObject result) {
+        WebSocket socket = webSocket;
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (socket == null || deviceToken == null) {
+            Log.w(TAG, "No socket for command result");
+            return;
+        }
+        try {
+            // Copy, the dispatcher keeps the result to answer redeliveries
+            JSONObject frame = new JSONObject(result.toString());
+            if (!sessionAuthenticated) {
+                frame.put("deviceToken", deviceToken);
+            }
+            socket.send(frame.toString());
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to send command result", e);
+        }
+    }
+    
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+        if (!isCurrent(webSocket)) {
+            return;
+        }
+        long[] pong = HeartbeatFrame.decodePong(bytes);
+        if (pong == null) {
+            Log.w(TAG, "Ignoring unknown binary frame of " + bytes.size() + " bytes");
+            return;
+        }
+        onPong(pong[0] == lastPingSeq, pong[1], pong[2]);
+    }
+    
+    // matchesLastPing is false for a late pong, which says nothing about the
+    // current RTT. Server times are -1 when the pong carries none.
+    private void onPong(boolean matchesLastPing, long serverReceivedAt, long serverSentAt) {
+        lastPongTime = System.currentTimeMillis();
+        consecutivePongTimeouts.set(0);
+        reconnectPolicy.onSuccess();
+        if (matchesLastPing) {
+            if (serverReceivedAt > 0 && serverSentAt > 0) {
+                clockSync.addSample(lastPingTime, serverReceivedAt, serverSentAt, lastPongTime);
+            }
+            heartbeatPolicy.recordRtt(lastPongTime - lastPingTime);
+            UniversalConnectionService.getInstance(context).notifyRtt(lastPongTime - lastPingTime);
+        } else {
+            heartbeatPolicy.recordSuccess();
+        }
+        // Notify universal service about successful ping
+        UniversalConnectionService.getInstance(context).notifyWebSocketConfirmed();
+        UniversalConnectionService.getInstance(context).notifySuccessfulConnection();
+    }
+    
+    // The token goes out once per socket. Servers that know the auth message
+    // answer auth_ok and accept binary heartbeats; older ones ignore it and
+    // keep receiving JSON pings.
+    private void sendAuth(WebSocket socket) {
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (deviceToken == null) {
+            return;
+        }
+        try {
+            sessionStart = System.currentTimeMillis();
+            JSONObject auth = new JSONObject();
+            auth.put("type", "auth");
+            auth.put("deviceToken", deviceToken);
+            auth.put("sessionStart", sessionStart);
+            auth.put("supports", new JSONArray().put(CAPABILITY_BINARY_HEARTBEAT));
+            socket.send(auth.toString());
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending session auth", e);
+        }
+    }
+    
     @Override
     public void onClosing(WebSocket webSocket, int code, String reason) {
         Log.d(TAG, "WebSocket closing: " + code + " " + reason);
@@ -215,6 +500,18 @@ public class DevicePingService extends WebSocketListener {
     @Override
     public void onClosed(WebSocket webSocket, int code, String reason) {
         Log.d(TAG, "WebSocket closed: " + code + " " + reason);
+        if (!isCurrent(webSocket)) {
+            // A socket we already replaced, its reconnect was scheduled then
+            return;
+        }
+        onSocketGone();
+        long retryAfter = ReconnectPolicy.retryAfterMs(reason);
+        if (retryAfter >= 0) {
+            reconnectPolicy.deferFor(retryAfter);
+        } else if (code == CLOSE_GOING_AWAY || code == CLOSE_SERVICE_RESTART || code == CLOSE_TRY_AGAIN_LATER) {
+            // Every device just lost the server together
+            reconnectPolicy.onServerWideDrop();
+        }
         if (isRunning) {
             scheduleReconnect();
         }
@@ -223,6 +520,27 @@ public class DevicePingService extends WebSocketListener {
     @Override
     public void onFailure(WebSocket webSocket, Throwable t, Response response) {
         Log.e(TAG, "WebSocket failure: " + t.getMessage());
+        heartbeatPolicy.recordFailure();
+        if (!isCurrent(webSocket)) {
+            return;
+        }
+        onSocketGone();
+        long retryAfter = ReconnectPolicy.retryAfterMs(response);
+        if (retryAfter >= 0) {
+            reconnectPolicy.deferFor(retryAfter);
+        } else if ((response != null && (response.code() >= 500 || response.code() == 429))
+                || t instanceof ConnectException) {
+            reconnectPolicy.onServerWideDrop();
+        }
+        if (t instanceof SocketTimeoutException) {
+            // A missed control-frame pong, or the connect itself timed out
+            int threshold = prefs.getInt(KEY_TRANSPORT_FAILURE_THRESHOLD, DEFAULT_TRANSPORT_FAILURE_THRESHOLD);
+            if (consecutivePongTimeouts.incrementAndGet() >= threshold) {
+                Log.w(TAG, consecutivePongTimeouts.get() + " consecutive pong timeouts, reporting connection failure");
+                consecutivePongTimeouts.set(0);
+                UniversalConnectionService.getInstance(context).notifyWebSocketFailure();
+            }
+        }
         if (isRunning) {
             // Check if we still have a device token to reconnect
             String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
@@ -235,15 +553,66 @@ public class DevicePingService extends WebSocketListener {
         }
     }
     
+    // Wakes up anyone waiting for an ack on the dead socket so they fall back to HTTP
+    private void onSocketGone() {
+        notificationsSupported = false;
+        sessionAuthenticated = false;
+        binaryHeartbeat = false;
+        transportLiveness = false;
+        for (PendingAck pending : pendingAcks.values()) {
+            pending.latch.countDown();
+        }
+    }
+    
+    private static boolean hasCapability(JSONObject message, String capability) {
+        JSONArray capabilities = message.optJSONArray("capabilities");
+        if (capabilities == null) {
+            return false;
+        }
+        for (int i = 0; i < capabilities.length(); i++) {
+            if (capability.equals(capabilities.optString(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private void reconnectWebSocket() {
-        if (webSocket != null) {
-            webSocket.close(1000, "Reconnecting");
-            webSocket = null;
+        WebSocket socket = webSocket;
+        webSocket = null;
+        if (socket != null) {
+            socket.close(1000, "Reconnecting");
         }
+        onSocketGone();
         scheduleReconnect();
     }
     
-    private void scheduleReconnect() {
+    // The network changed under us: the socket is tied to the old one, so it is
+    // dropped without a close handshake and a new one opened with no backoff
+    public void reconnectNow() {
+        reconnectPolicy.reset();
+        if (!isRunning) {
+            return;
+        }
+        Log.d(TAG, "Reconnecting now");
+        WebSocket socket = webSocket;
+        webSocket = null;
+        if (socket != null) {
+            socket.cancel();
+        }
+        onSocketGone();
+        synchronized (this) {
+            cancelPendingReconnect();
+            scheduleConnect(0);
+        }
+    }
+    
+    // Callbacks of a socket that was replaced or closed are ignored
+    private synchronized boolean isCurrent(WebSocket socket) {
+        return socket == webSocket;
+    }
+    
+    private synchronized void scheduleReconnect() {
         if (isRunning) {
             // Check if we have a device token before reconnecting
             String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
@@ -252,16 +621,54 @@ public class DevicePingService extends WebSocketListener {
                 return;
             }
             
-            Log.d(TAG, "Scheduling WebSocket reconnect in 2 seconds");
-            handler.postDelayed(() -> {
+            if (pendingReconnect != null) {
+                Log.d(TAG, "Reconnect already scheduled");
+                return;
+            }
+            
+            long delay = reconnectPolicy.nextDelay();
+            UniversalConnectionService connectionService = UniversalConnectionService.getInstance(context);
+            connectionService.notifyBackingOff(delay);
+            if (reconnectPolicy.isCircuitOpen()) {
+                // Let the connection service fall back to another mode meanwhile
+                connectionService.notifyWebSocketFailure();
+            }
+            scheduleConnect(delay);
+        }
+    }
+    
+    private synchronized void scheduleConnect(long delayMs) {
+        Log.d(TAG, "Scheduling WebSocket reconnect in " + delayMs + "ms");
+        pendingReconnect = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DevicePingService.this) {
+                    if (pendingReconnect != this) {
+                        return;
+                    }
+                    pendingReconnect = null;
+                }
                 if (isRunning) {
                     connectWebSocket();
                 }
-            }, 2000); // Reduced to 2 seconds for faster reconnection
+            }
+        };
+        handler.postDelayed(pendingReconnect, delayMs);
+    }
+    
+    private synchronized void cancelPendingReconnect() {
+        if (pendingReconnect != null) {
+            handler.removeCallbacks(pendingReconnect);
+            pendingReconnect = null;
         }
     }
     
     public boolean isRunning() {
         return isRunning;
     }
+    
+    private static class PendingAck {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile NotificationAckResponse ack;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package ru.chasepay.mobile.services;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Runs a task on its own thread when asked, folding requests together. A
+// request for a later run than the one already queued is absorbed by it, an
+// earlier one moves it forward. Asking while the task runs queues one more run
+// behind it, so whatever arrived meanwhile is not missed.
+class DrainScheduler {
+    private final Runnable task;
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> pending;
+
+    DrainScheduler(Runnable task) {
+        this.task = task;
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    synchronized void request(long delayMs) {
+        if (pending != null && !pending.isDone()) {
+            long remaining = pending.getDelay(TimeUnit.MILLISECONDS);
+            if (remaining > 0 && remaining <= delayMs) {
+                // An earlier run is already queued
+                return;
+            }
+            if (remaining > delayMs) {
+                pending.cancel(false);
+            }
+            // Otherwise the task is running right now, queue another run behind it
+        }
+        pending = executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // True while a run is queued or in progress
+    synchronized boolean isPending() {
+        return pending != null && !pending.isDone();
+    }
+}
\ No newline at end of file
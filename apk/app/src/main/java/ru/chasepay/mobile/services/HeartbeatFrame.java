@@ -0,0 +1,80 @@
+package ru.chasepay.mobile.services;
+
+import okio.ByteString;
+
+// Binary heartbeat frames for authenticated WebSocket sessions, version 1:
+//
+//   heartbeat: [version][type=1][seq][batteryLevel][networkSpeed][sentAt - sessionStart]
+//   pong:      [version][type=2][seq]([serverReceivedAt][serverSentAt])
+//
+// version and type are single bytes, every other field is an unsigned LEB128
+// varint. The server times in a pong are epoch milliseconds and optional, a
+// server that sends them lets the device estimate its clock offset. The
+// device token is not repeated, the session was authenticated once when the
+// socket opened.
+final class HeartbeatFrame {
+    static final int VERSION = 1;
+    static final int TYPE_HEARTBEAT = 1;
+    static final int TYPE_PONG = 2;
+    // Version and type plus four varints of at most 10 bytes each; a typical
+    // heartbeat is about 10 bytes
+    static final int MAX_HEARTBEAT_SIZE = 2 + 4 * 10;
+    
+    private HeartbeatFrame() {
+    }
+    
+    // Writes a heartbeat into out and returns its length
+    static int encodeHeartbeat(byte[] out, long seq, int batteryLevel, int networkSpeed, long sessionElapsedMs) {
+        int pos = 0;
+        out[pos++] = (byte) VERSION;
+        out[pos++] = (byte) TYPE_HEARTBEAT;
+        pos = writeVarint(out, pos, seq);
+        pos = writeVarint(out, pos, Math.max(0, batteryLevel));
+        pos = writeVarint(out, pos, Math.max(0, networkSpeed));
+        pos = writeVarint(out, pos, Math.max(0, sessionElapsedMs));
+        return pos;
+    }
+    
+    // {seq, serverReceivedAt, serverSentAt} of a version 1 pong, the times -1
+    // when the server did not send them; null for anything else
+    static long[] decodePong(ByteString frame) {
+        if (frame.size() < 3 || (frame.getByte(0) & 0xFF) != VERSION || (frame.getByte(1) & 0xFF) != TYPE_PONG) {
+            return null;
+        }
+        long[] fields = {-1, -1, -1};
+        int pos = 2;
+        for (int i = 0; i < fields.length && pos < frame.size(); i++) {
+            long value = 0;
+            int shift = 0;
+            boolean complete = false;
+            while (pos < frame.size() && shift < 64) {
+                int b = frame.getByte(pos++) & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                if ((b & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+            }
+            if (!complete) {
+                // Truncated varint
+                return i == 0 ? null : new long[] {fields[0], -1, -1};
+            }
+            fields[i] = value;
+        }
+        if (fields[2] < 0) {
+            // Both times or neither
+            fields[1] = -1;
+        }
+        return fields;
+    }
+    
+    private static int writeVarint(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+}
\ No newline at end of file
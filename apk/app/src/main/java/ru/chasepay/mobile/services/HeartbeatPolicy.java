@@ -0,0 +1,131 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import ru.chasepay.mobile.utils.DeviceUtils;
+
+// Decides how often the device has to prove it is alive. The interval moves
+// between a server-negotiated minimum and maximum: short while notifications
+// are flowing or the link looks unhealthy, longer when idle, and somewhere in
+// between while charging since the radio cost does not matter then.
+public class HeartbeatPolicy {
+    private static final String TAG = "HeartbeatPolicy";
+    
+    // The server marks a device offline after its health-check timeout, 5 s by
+    // default, so without negotiation the maximum has to stay below that
+    private static final long DEFAULT_MIN_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final long DEFAULT_MAX_INTERVAL = TimeUnit.SECONDS.toMillis(4);
+    private static final long HARD_MIN_INTERVAL = 500;
+    
+    // Keep heartbeats at the minimum this long after the last notification
+    private static final long TRAFFIC_WINDOW = TimeUnit.SECONDS.toMillis(15);
+    private static final long SLOW_RTT = 1500;
+    private static final long BATTERY_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    
+    private final Context context;
+    private final List<HeartbeatScheduler> schedulers = new CopyOnWriteArrayList<>();
+    
+    private volatile long minInterval = DEFAULT_MIN_INTERVAL;
+    private volatile long maxInterval = DEFAULT_MAX_INTERVAL;
+    private volatile long lastTrafficAt = 0;
+    
+    private double rttAverage = -1;
+    private int consecutiveFailures = 0;
+    private boolean charging = false;
+    private long batteryCheckedAt = 0;
+    
+    private static HeartbeatPolicy instance;
+    
+    public static synchronized HeartbeatPolicy getInstance(Context context) {
+        if (instance == null) {
+            instance = new HeartbeatPolicy(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    private HeartbeatPolicy(Context context) {
+        this.context = context;
+    }
+    
+    public synchronized long currentInterval() {
+        long now = System.currentTimeMillis();
+        if (now - lastTrafficAt < TRAFFIC_WINDOW || isLinkDegraded()) {
+            return minInterval;
+        }
+        if (now - batteryCheckedAt > BATTERY_REFRESH_INTERVAL) {
+            charging = DeviceUtils.isCharging(context);
+            batteryCheckedAt = now;
+        }
+        if (charging) {
+            return minInterval + (maxInterval - minInterval) / 4;
+        }
+        return maxInterval;
+    }
+    
+    public long getMinInterval() {
+        return minInterval;
+    }
+    
+    // Reads {"heartbeat": {"minIntervalMs", "maxIntervalMs"}} from a server
+    // message. Servers that do not send it keep the defaults.
+    public void applyServerHints(JSONObject message) {
+        JSONObject heartbeat = message != null ? message.optJSONObject("heartbeat") : null;
+        if (heartbeat == null) {
+            return;
+        }
+        long min = heartbeat.optLong("minIntervalMs", minInterval);
+        long max = heartbeat.optLong("maxIntervalMs", maxInterval);
+        setServerBounds(min, max);
+    }
+    
+    public synchronized void setServerBounds(long min, long max) {
+        min = Math.max(min, HARD_MIN_INTERVAL);
+        max = Math.max(max, min);
+        if (min != minInterval || max != maxInterval) {
+            Log.d(TAG, "Heartbeat bounds " + min + ".." + max + "ms");
+            minInterval = min;
+            maxInterval = max;
+        }
+    }
+    
+    public synchronized void recordRtt(long rttMs) {
+        rttAverage = rttAverage < 0 ? rttMs : rttAverage * 0.8 + rttMs * 0.2;
+        consecutiveFailures = 0;
+    }
+    
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+    
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+    }
+    
+    // Called when a notification is captured. Pulls the next heartbeat of
+    // every running scheduler forward so liveness is fresh when it is sent.
+    public void onTraffic() {
+        lastTrafficAt = System.currentTimeMillis();
+        for (HeartbeatScheduler scheduler : schedulers) {
+            scheduler.probeNow();
+        }
+    }
+    
+    void register(HeartbeatScheduler scheduler) {
+        schedulers.add(scheduler);
+    }
+    
+    void unregister(HeartbeatScheduler scheduler) {
+        schedulers.remove(scheduler);
+    }
+    
+    private boolean isLinkDegraded() {
+        return consecutiveFailures > 0 || rttAverage > SLOW_RTT;
+    }
+}
\ No newline at end of file
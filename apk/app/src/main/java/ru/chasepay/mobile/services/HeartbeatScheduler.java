@@ -0,0 +1,94 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+// Runs a heartbeat on the main looper at the interval HeartbeatPolicy picks,
+// re-evaluated after every beat. A scale factor lets slower periodic work
+// (device info updates) follow the same policy.
+public class HeartbeatScheduler {
+    private static final String TAG = "HeartbeatScheduler";
+    
+    private final HeartbeatPolicy policy;
+    private final Handler handler;
+    private final Runnable beat;
+    private final long scale;
+    private final Runnable tick = this::onTick;
+    
+    private volatile boolean running = false;
+    private volatile long lastBeatAt = 0;
+    private volatile long scheduledFor = 0;
+    private volatile long lastLateness = 0;
+    
+    public HeartbeatScheduler(Context context, long scale, Runnable beat) {
+        this.policy = HeartbeatPolicy.getInstance(context);
+        this.handler = new Handler(Looper.getMainLooper());
+        this.scale = scale;
+        this.beat = beat;
+    }
+    
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        policy.register(this);
+        scheduledFor = System.currentTimeMillis();
+        handler.post(tick);
+    }
+    
+    public synchronized void stop() {
+        running = false;
+        policy.unregister(this);
+        handler.removeCallbacks(tick);
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+    
+    // Beat as soon as the policy minimum since the last beat allows
+    public void probeNow() {
+        handler.post(() -> {
+            if (!running) {
+                return;
+            }
+            long earliest = lastBeatAt + policy.getMinInterval() * scale;
+            long now = System.currentTimeMillis();
+            if (earliest < scheduledFor) {
+                handler.removeCallbacks(tick);
+                scheduleAt(Math.max(now, earliest));
+            }
+        });
+    }
+    
+    // How much later than planned the last beat ran. Large values mean the
+    // device was asleep and long-lived connections are likely dead.
+    public long getLastLateness() {
+        return lastLateness;
+    }
+    
+    private void onTick() {
+        if (!running) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        lastLateness = Math.max(0, now - scheduledFor);
+        lastBeatAt = now;
+        try {
+            beat.run();
+        } catch (Exception e) {
+            Log.e(TAG, "Heartbeat failed", e);
+        }
+        if (running) {
+            scheduleAt(now + policy.currentInterval() * scale);
+        }
+    }
+    
+    private void scheduleAt(long at) {
+        scheduledFor = at;
+        handler.postDelayed(tick, Math.max(0, at - System.currentTimeMillis()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import ru.chasepay.mobile.api.HttpClientProvider;
+import ru.chasepay.mobile.utils.DeviceUtils;
+
+// Long-poll fallback for networks where the WebSocket does not get through.
+// Each request carries the cursor of the last event seen and the hold time
+// we want; the server answers as soon as it has something or when the hold
+// expires. The read timeout follows the negotiated hold, so a quiet poll is
+// never cut off early, and empty answers are spaced out so a server that
+// returns immediately cannot turn this into a busy loop.
+class LongPollTransport {
+    private static final String TAG = "LongPollTransport";
+    private static final String KEY_DEVICE_TOKEN = "device_token";
+    private static final String KEY_CURSOR = "long_poll_cursor";
+
+    // What the server holds a poll for today
+    private static final long DEFAULT_HOLD = TimeUnit.SECONDS.toMillis(25);
+    private static final long MIN_HOLD = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_HOLD = TimeUnit.MINUTES.toMillis(2);
+    // Headroom over the hold for the server to answer and the bytes to arrive
+    private static final long READ_GRACE = TimeUnit.SECONDS.toMillis(10);
+    // Least time between two polls that brought no data
+    private static final long MIN_SPACING = 1000;
+
+    interface Listener {
+        void onPollResponse(JSONObject response);
+        void onPollFailure(String reason);
+    }
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final Listener listener;
+    private final ReconnectPolicy backoff = new ReconnectPolicy("long-poll");
+
+    private volatile long holdMs = DEFAULT_HOLD;
+    private OkHttpClient pollClient;
+    private long pollClientHold;
+
+    private volatile Thread thread;
+    private volatile Call currentCall;
+
+    LongPollTransport(Context context, SharedPreferences prefs, Listener listener) {
+        this.context = context;
+        this.prefs = prefs;
+        this.listener = listener;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        Log.d(TAG, "Starting long-poll, hold " + holdMs + "ms");
+        backoff.reset();
+        thread = new Thread(this::run, "LongPoll");
+        thread.start();
+    }
+
+    synchronized void stop() {
+        Thread running = thread;
+        thread = null;
+        Call call = currentCall;
+        if (call != null) {
+            call.cancel();
+        }
+        if (running != null) {
+            Log.d(TAG, "Stopping long-poll");
+            running.interrupt();
+        }
+    }
+
+    boolean isRunning() {
+        return thread != null;
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        while (thread == self) {
+            long startedAt = System.currentTimeMillis();
+            try {
+                JSONObject response = poll();
+                backoff.onSuccess();
+                listener.onPollResponse(response);
+
+                // Data came back, there may be more queued behind it
+                if (!"command".equals(response.optString("status"))) {
+                    sleep(MIN_SPACING - (System.currentTimeMillis() - startedAt));
+                }
+            } catch (Exception e) {
+                if (thread != self) {
+                    break;
+                }
+                Log.e(TAG, "Long-poll error: " + e.getMessage());
+                if (e instanceof ConnectException) {
+                    backoff.onServerWideDrop();
+                }
+                listener.onPollFailure("long-poll " + e.getMessage());
+                sleep(backoff.nextDelay());
+            }
+        }
+        Log.d(TAG, "Long-poll loop finished");
+    }
+
+    private JSONObject poll() throws Exception {
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (deviceToken == null) {
+            throw new IOException("No device token");
+        }
+        backoff.seed(deviceToken);
+
+        String baseUrl = ru.chasepay.mobile.BuildConfig.BASE_URL;
+        String pollUrl = baseUrl.replace("/api", "") + "/api/device/long-poll";
+
+        long hold = holdMs;
+        JSONObject data = new JSONObject();
+        data.put("batteryLevel", DeviceUtils.getBatteryLevel(context));
+        data.put("networkSpeed", DeviceUtils.getNetworkSpeed(context));
+        data.put("timestamp", ClockSync.getInstance(context).now());
+        data.put("holdMs", hold);
+        String cursor = prefs.getString(KEY_CURSOR, null);
+        if (cursor != null) {
+            data.put("cursor", cursor);
+        }
+
+        Request request = new Request.Builder()
+                .url(pollUrl)
+                .post(RequestBody.create(MediaType.parse("application/json"), data.toString()))
+                .addHeader("x-device-token", deviceToken)
+                .build();
+
+        Call call = clientFor(hold).newCall(request);
+        currentCall = call;
+        if (thread != Thread.currentThread()) {
+            // Stopped while the request was being built
+            call.cancel();
+        }
+        try (Response response = call.execute()) {
+            if (!response.isSuccessful()) {
+                long retryAfter = ReconnectPolicy.retryAfterMs(response);
+                if (retryAfter >= 0) {
+                    backoff.deferFor(retryAfter);
+                } else if (response.code() >= 500 || response.code() == 429) {
+                    backoff.onServerWideDrop();
+                }
+                throw new IOException("HTTP " + response.code());
+            }
+            JSONObject result = new JSONObject(response.body().string());
+            if (result.has("cursor")) {
+                prefs.edit().putString(KEY_CURSOR, result.getString("cursor")).apply();
+            }
+            if (result.has("holdMs")) {
+                // The server decides how long it is willing to hold
+                holdMs = Math.max(MIN_HOLD, Math.min(MAX_HOLD, result.getLong("holdMs")));
+            }
+            return result;
+        } finally {
+            currentCall = null;
+        }
+    }
+
+    // Rebuilt only when the hold changes; derived clients share the core pool
+    private synchronized OkHttpClient clientFor(long hold) {
+        if (pollClient == null || pollClientHold != hold) {
+            pollClient = HttpClientProvider.newBuilder()
+                    .readTimeout(hold + READ_GRACE, TimeUnit.MILLISECONDS)
+                    .build();
+            pollClientHold = hold;
+        }
+        return pollClient;
+    }
+
+    private void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // Stopped, the loop condition ends it
+        }
+    }
+}
\ No newline at end of file
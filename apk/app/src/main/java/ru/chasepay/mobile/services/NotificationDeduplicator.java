@@ -0,0 +1,116 @@
+package ru.chasepay.mobile.services;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Bank apps re-post or update the same notification, and every call to
+// onNotificationPosted would otherwise be uploaded again. A notification is
+// identified by its key, its "when" timestamp and a hash of its text; seen
+// fingerprints are kept for DEDUP_WINDOW in memory and in the outbox database,
+// so duplicates are also caught after a service restart.
+public class NotificationDeduplicator {
+    private static final String TAG = "NotificationDedup";
+    private static final long DEDUP_WINDOW = TimeUnit.MINUTES.toMillis(10);
+    private static final int MEMORY_CAPACITY = 256;
+    private static final int PRUNE_EVERY = 100;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final OutboxDatabase database;
+    private final Map<Long, Long> recent = new LinkedHashMap<Long, Long>(MEMORY_CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MEMORY_CAPACITY;
+        }
+    };
+    private int insertsSincePrune = 0;
+
+    private static NotificationDeduplicator instance;
+
+    public static synchronized NotificationDeduplicator getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationDeduplicator(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NotificationDeduplicator(Context context) {
+        this.database = OutboxDatabase.getInstance(context);
+    }
+
+    public static long fingerprint(String key, long when, CharSequence title, CharSequence content) {
+        long hash = FNV_OFFSET;
+        hash = mix(hash, key);
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((when >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        hash = mix(hash, title);
+        // Separator so "ab" + "c" and "a" + "bc" differ
+        hash = (hash ^ 0xff) * FNV_PRIME;
+        return mix(hash, content);
+    }
+
+    private static long mix(long hash, CharSequence text) {
+        if (text == null) {
+            return hash;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    public synchronized boolean isDuplicate(long fingerprint, long postTime) {
+        Long seenAt = recent.get(fingerprint);
+        if (seenAt == null) {
+            seenAt = loadSeen(fingerprint);
+            if (seenAt != null) {
+                recent.put(fingerprint, seenAt);
+            }
+        }
+        return seenAt != null && Math.abs(postTime - seenAt) < DEDUP_WINDOW;
+    }
+
+    // Called once the notification is safely in the outbox
+    public synchronized void remember(long fingerprint, long postTime) {
+        recent.put(fingerprint, postTime);
+        try {
+            ContentValues values = new ContentValues();
+            values.put(OutboxDatabase.COL_FINGERPRINT, fingerprint);
+            values.put(OutboxDatabase.COL_POST_TIME, postTime);
+            SQLiteDatabase db = database.getWritableDatabase();
+            db.insertWithOnConflict(OutboxDatabase.TABLE_SEEN, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+            if (++insertsSincePrune >= PRUNE_EVERY) {
+                insertsSincePrune = 0;
+                int pruned = db.delete(OutboxDatabase.TABLE_SEEN, OutboxDatabase.COL_POST_TIME + " < ?",
+                        new String[] { String.valueOf(System.currentTimeMillis() - DEDUP_WINDOW) });
+                Log.d(TAG, "Pruned " + pruned + " expired fingerprints");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to persist notification fingerprint", e);
+        }
+    }
+
+    private Long loadSeen(long fingerprint) {
+        try (Cursor cursor = database.getReadableDatabase().query(OutboxDatabase.TABLE_SEEN,
+                new String[] { OutboxDatabase.COL_POST_TIME },
+                OutboxDatabase.COL_FINGERPRINT + " = ?", new String[] { String.valueOf(fingerprint) },
+                null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read notification fingerprint", e);
+            return null;
+        }
+    }
+}
\ No newline at end of file
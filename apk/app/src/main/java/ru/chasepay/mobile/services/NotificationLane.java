@@ -0,0 +1,44 @@
+package ru.chasepay.mobile.services;
+
+import java.util.concurrent.TimeUnit;
+
+import ru.chasepay.mobile.models.ParsedTransaction;
+
+// Delivery lanes, most urgent first. The ordinal is stored in the outbox and
+// used as the drain order, so new lanes must be appended, not inserted.
+public enum NotificationLane {
+    // Bank notification carrying a payment, flushed as soon as its burst is over
+    TRANSACTION(1, "transaction", 0),
+    // Anything else from a bank app: codes, promos, statements
+    BANK_OTHER(2, "bank", TimeUnit.SECONDS.toMillis(30)),
+    // Keyword matches from non-bank apps without a parsed payment, and
+    // forward-all debugging traffic
+    OTHER(3, "other", TimeUnit.MINUTES.toMillis(2));
+    
+    public final int priority;
+    public final String category;
+    // Longest time an entry waits for another drain to piggyback on
+    public final long maxDeferral;
+    
+    NotificationLane(int priority, String category, long maxDeferral) {
+        this.priority = priority;
+        this.category = category;
+        this.maxDeferral = maxDeferral;
+    }
+    
+    public static NotificationLane classify(boolean bankPackage, boolean hasKeyword, ParsedTransaction parsed) {
+        if (parsed != null && parsed.amount != null) {
+            // A payment whatever app showed it, e.g. a bank SMS in the messaging app
+            return TRANSACTION;
+        }
+        if (bankPackage) {
+            return parsed != null || hasKeyword ? TRANSACTION : BANK_OTHER;
+        }
+        return OTHER;
+    }
+    
+    static NotificationLane fromOrdinal(int ordinal) {
+        NotificationLane[] lanes = values();
+        return ordinal >= 0 && ordinal < lanes.length ? lanes[ordinal] : OTHER;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,202 @@
+package ru.chasepay.mobile.services;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.chasepay.mobile.models.NotificationRequest;
+
+// Append-only queue of notifications waiting for the server. Entries are only
+// removed once the server has acknowledged them.
+public class NotificationOutbox {
+    private static final String TAG = "NotificationOutbox";
+
+    private final OutboxDatabase database;
+    private final Gson gson = new Gson();
+
+    private static NotificationOutbox instance;
+
+    public static synchronized NotificationOutbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationOutbox(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NotificationOutbox(Context context) {
+        this(OutboxDatabase.getInstance(context));
+    }
+
+    NotificationOutbox(OutboxDatabase database) {
+        this.database = database;
+    }
+
+    public long append(NotificationRequest request, NotificationLane lane, long postedAt) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(OutboxDatabase.COL_PAYLOAD, gson.toJson(request));
+            values.put(OutboxDatabase.COL_CREATED_AT, System.currentTimeMillis());
+            values.put(OutboxDatabase.COL_LANE, lane.ordinal());
+            values.put(OutboxDatabase.COL_POSTED_AT, postedAt);
+            long id = database.getWritableDatabase().insertOrThrow(OutboxDatabase.TABLE_OUTBOX, null, values);
+            Log.d(TAG, "Notification stored in outbox with id " + id + " (" + lane + ")");
+            return id;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to store notification in outbox", e);
+            return -1;
+        }
+    }
+
+    // Most urgent lane first, and oldest first within a lane, so lower lanes fill
+    // whatever room a transaction batch leaves
+    public List<Entry> peek(int limit) {
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(
+                OutboxDatabase.TABLE_OUTBOX,
+                new String[] { OutboxDatabase.COL_ID, OutboxDatabase.COL_PAYLOAD, OutboxDatabase.COL_ATTEMPTS, OutboxDatabase.COL_LANE,
+                        OutboxDatabase.COL_POSTED_AT, OutboxDatabase.COL_CREATED_AT },
+                null, null, null, null,
+                OutboxDatabase.COL_LANE + " ASC, " + OutboxDatabase.COL_ID + " ASC",
+                String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                try {
+                    NotificationRequest request = gson.fromJson(cursor.getString(1), NotificationRequest.class);
+                    entries.add(new Entry(id, request, cursor.getInt(2), NotificationLane.fromOrdinal(cursor.getInt(3)),
+                            cursor.getLong(4), cursor.getLong(5)));
+                } catch (Exception e) {
+                    // A row we cannot decode will never upload, drop it instead of blocking the queue
+                    Log.e(TAG, "Dropping unreadable outbox entry " + id, e);
+                    remove(id);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read outbox", e);
+        }
+        return entries;
+    }
+
+    public void remove(long id) {
+        try {
+            database.getWritableDatabase().delete(OutboxDatabase.TABLE_OUTBOX,
+                    OutboxDatabase.COL_ID + " = ?", new String[] { String.valueOf(id) });
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to remove outbox entry " + id, e);
+        }
+    }
+
+    // Returns how many rows went, 0 when the delete failed and was rolled back
+    public int remove(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        int removed = 0;
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                removed += db.delete(OutboxDatabase.TABLE_OUTBOX,
+                        OutboxDatabase.COL_ID + " = ?", new String[] { String.valueOf(entry.id) });
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to remove outbox entries", e);
+            removed = 0;
+        } finally {
+            db.endTransaction();
+        }
+        return removed;
+    }
+
+    public void markAttempted(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                db.execSQL("UPDATE " + OutboxDatabase.TABLE_OUTBOX
+                        + " SET " + OutboxDatabase.COL_ATTEMPTS + " = " + OutboxDatabase.COL_ATTEMPTS + " + 1"
+                        + " WHERE " + OutboxDatabase.COL_ID + " = ?", new Object[] { entry.id });
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to update outbox attempts", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Deletes everything the server acknowledged, returns how many rows went
+    public int removeUpTo(long seq) {
+        try {
+            return database.getWritableDatabase().delete(OutboxDatabase.TABLE_OUTBOX,
+                    OutboxDatabase.COL_ID + " <= ?", new String[] { String.valueOf(seq) });
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to remove outbox entries up to " + seq, e);
+            return 0;
+        }
+    }
+
+    // Lowest sequence still waiting, or the next one to be assigned when the outbox is empty
+    public long floorSeq() {
+        try {
+            SQLiteDatabase db = database.getReadableDatabase();
+            long oldest = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MIN(" + OutboxDatabase.COL_ID + "), 0) FROM " + OutboxDatabase.TABLE_OUTBOX, null);
+            return oldest > 0 ? oldest : lastAssignedSeq() + 1;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read outbox floor", e);
+            return 0;
+        }
+    }
+
+    // Highest id AUTOINCREMENT ever handed out, survives the rows being deleted
+    public long lastAssignedSeq() {
+        try {
+            return DatabaseUtils.longForQuery(database.getReadableDatabase(),
+                    "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?",
+                    new String[] { OutboxDatabase.TABLE_OUTBOX });
+        } catch (Exception e) {
+            // sqlite_sequence only exists after the first insert
+            return 0;
+        }
+    }
+
+    public long size() {
+        try {
+            return DatabaseUtils.queryNumEntries(database.getReadableDatabase(), OutboxDatabase.TABLE_OUTBOX);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to count outbox entries", e);
+            return 0;
+        }
+    }
+
+    public static class Entry {
+        public final long id;
+        public final NotificationRequest request;
+        public final int attempts;
+        public final NotificationLane lane;
+        public final long postedAt;
+        public final long enqueuedAt;
+
+        Entry(long id, NotificationRequest request, int attempts, NotificationLane lane,
+              long postedAt, long enqueuedAt) {
+            this.id = id;
+            this.request = request;
+            this.attempts = attempts;
+            this.lane = lane;
+            this.postedAt = postedAt;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.service.notification.StatusBarNotification;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import ru.chasepay.mobile.models.NotificationRequest;
+import ru.chasepay.mobile.utils.AppLabelCache;
+import ru.chasepay.mobile.utils.NotificationFilter;
+import ru.chasepay.mobile.utils.TransactionParser;
+
+// Takes notifications off the listener callback thread. The callback only
+// copies a few fields into the ring buffer; filtering, dedup, enrichment and
+// the outbox write happen on a dedicated consumer thread.
+public class NotificationPipeline {
+    private static final String TAG = "NotificationPipeline";
+    private static final String PREFS_NAME = "ChasePrefs";
+    private static final String KEY_FORWARD_ALL_NOTIFICATIONS = "forward_all_notifications";
+    private static final String KEY_OVERFLOW_POLICY = "notification_overflow_policy";
+    
+    private static final int BUFFER_CAPACITY = 256;
+    private static final long POLL_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
+    
+    private final NotificationRingBuffer buffer;
+    private final NotificationFilter notificationFilter;
+    private final NotificationOutbox outbox;
+    private final NotificationUploader uploader;
+    private final NotificationDeduplicator deduplicator;
+    private final AppLabelCache appLabels;
+    private final DeliveryMetrics metrics;
+    private final HeartbeatPolicy heartbeatPolicy;
+    private final ClockSync clockSync;
+    private final SharedPreferences prefs;
+    
+    // The current consumer; a thread that finds it replaced exits its loop
+    private volatile Thread consumer;
+    
+    private static NotificationPipeline instance;
+    
+    public static synchronized NotificationPipeline getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationPipeline(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    private NotificationPipeline(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.buffer = new NotificationRingBuffer(BUFFER_CAPACITY, readOverflowPolicy());
+        this.notificationFilter = NotificationFilter.getDefault();
+        this.outbox = NotificationOutbox.getInstance(context);
+        this.uploader = NotificationUploader.getInstance(context);
+        this.deduplicator = NotificationDeduplicator.getInstance(context);
+        this.appLabels = AppLabelCache.getInstance(context);
+        this.metrics = DeliveryMetrics.getInstance(context);
+        this.heartbeatPolicy = HeartbeatPolicy.getInstance(context);
+        this.clockSync = ClockSync.getInstance(context);
+    }
+    
+    public synchronized void start() {
+        if (consumer != null) {
+            return;
+        }
+        consumer = new Thread(this::consumeLoop, "NotificationPipeline");
+        consumer.start();
+        metrics.startReporting();
+        Log.d(TAG, "Notification pipeline started");
+    }
+    
+    // Whatever is still buffered stays in memory and is processed on the next start
+    public synchronized void stop() {
+        Thread running = consumer;
+        consumer = null;
+        if (running != null) {
+            running.interrupt();
+        }
+        metrics.stopReporting();
+        Log.d(TAG, "Notification pipeline stopped");
+    }
+    
+    public void setOverflowPolicy(NotificationRingBuffer.OverflowPolicy policy) {
+        prefs.edit().putString(KEY_OVERFLOW_POLICY, policy.name()).apply();
+        buffer.setOverflowPolicy(policy);
+    }
+    
+    public long getDroppedCount() {
+        return buffer.getDroppedCount();
+    }
+    
+    // Runs on the listener callback thread, must stay cheap and never block
+    public void submit(StatusBarNotification sbn) {
+        long capturedAt = System.currentTimeMillis();
+        String packageName = sbn.getPackageName();
+        CharSequence title = "";
+        CharSequence content = "";
+        
+        Bundle extras = sbn.getNotification().extras;
+        if (extras != null) {
+            title = extras.getCharSequence("android.title", "");
+            content = extras.getCharSequence("android.text", "");
+        }
+        
+        boolean accepted = buffer.offer(packageName, sbn.getKey(), sbn.getPostTime(),
+                sbn.getNotification().when, title, content, capturedAt,
+                notificationFilter.isBankPackage(packageName));
+        if (!accepted) {
+            metrics.recordDropped();
+            Log.w(TAG, "Ring buffer full, notification from " + packageName + " dropped");
+        }
+    }
+    
+    private void consumeLoop() {
+        Thread self = Thread.currentThread();
+        CapturedNotification notification = new CapturedNotification();
+        // A stop() followed quickly by start() must not leave two of these
+        // running, even if this one missed its interrupt
+        while (consumer == self) {
+            try {
+                if (buffer.poll(notification, POLL_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    process(notification);
+                    notification.clear();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                Log.e(TAG, "Error processing notification", e);
+            }
+        }
+    }
+    
+    private void process(CapturedNotification notification) {
+        metrics.record(DeliveryMetrics.Stage.CAPTURED, notification.postTime, notification.capturedAt);
+        
+        String packageName = notification.packageName;
+        CharSequence title = notification.title;
+        CharSequence content = notification.content;
+        
+        // Forwarding everything can still be switched on for debugging
+        boolean forwardAll = prefs.getBoolean(KEY_FORWARD_ALL_NOTIFICATIONS, false);
+        boolean hasKeyword = notificationFilter.hasTransactionKeyword(title, content);
+        if (!forwardAll && !notification.bankPackage && !hasKeyword) {
+            Log.d(TAG, "Notification filtered out: " + packageName);
+            return;
+        }
+        
+        // Updates and re-posts of an already shipped notification are dropped
+        long fingerprint = NotificationDeduplicator.fingerprint(
+            notification.key, notification.when, title, content);
+        if (deduplicator.isDuplicate(fingerprint, notification.postTime)) {
+            Log.d(TAG, "Duplicate notification skipped: " + notification.key);
+            return;
+        }
+        long filteredAt = System.currentTimeMillis();
+        metrics.record(DeliveryMetrics.Stage.FILTERED, notification.capturedAt, filteredAt);
+        
+        String appName = appLabels.getLabel(packageName);
+        Log.d(TAG, "Notification details - App: " + appName + ", Title: " + title + ", Content: " + content);
+        
+        NotificationRequest request = new NotificationRequest();
+        request.packageName = packageName;
+        request.appName = appName;
+        request.title = title.toString();
+        request.content = content.toString();
+        request.timestamp = clockSync.toServerTime(notification.capturedAt);
+        request.parsed = TransactionParser.parse(packageName, request.title, request.content);
+        
+        NotificationLane lane = NotificationLane.classify(notification.bankPackage, hasKeyword, request.parsed);
+        request.priority = lane.priority;
+        request.category = lane.category;
+        
+        // Persist first, the uploader delivers it once the server is reachable.
+        // Without a device token yet it waits in the outbox for the first connect.
+        if (outbox.append(request, lane, notification.postTime) < 0) {
+            Log.e(TAG, "Failed to store notification, it will not be delivered");
+            return;
+        }
+        metrics.record(DeliveryMetrics.Stage.ENQUEUED, filteredAt, System.currentTimeMillis());
+        deduplicator.remember(fingerprint, notification.postTime);
+        heartbeatPolicy.onTraffic();
+        uploader.onEnqueued(lane);
+    }
+    
+    private NotificationRingBuffer.OverflowPolicy readOverflowPolicy() {
+        String name = prefs.getString(KEY_OVERFLOW_POLICY, null);
+        if (name != null) {
+            try {
+                return NotificationRingBuffer.OverflowPolicy.valueOf(name);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown overflow policy " + name + ", using default");
+            }
+        }
+        return NotificationRingBuffer.OverflowPolicy.DROP_NON_BANK_FIRST;
+    }
+}
\ No newline at end of file
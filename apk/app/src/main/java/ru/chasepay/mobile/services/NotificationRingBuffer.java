@@ -0,0 +1,156 @@
+package ru.chasepay.mobile.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded FIFO between the notification listener callback and the ingestion
+// thread. Slots are allocated once; offer() never blocks, and when the buffer
+// is full the overflow policy decides what is lost.
+public class NotificationRingBuffer {
+    
+    public enum OverflowPolicy {
+        // Reject the incoming notification
+        DROP_NEWEST,
+        // Evict the oldest queued notification
+        DROP_OLDEST,
+        // Evict the oldest non-bank notification, falling back to DROP_OLDEST
+        // when only bank notifications are queued
+        DROP_NON_BANK_FIRST
+    }
+    
+    private final CapturedNotification[] slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    
+    private int head = 0;
+    private int count = 0;
+    private long dropped = 0;
+    private volatile OverflowPolicy policy;
+    
+    public NotificationRingBuffer(int capacity, OverflowPolicy policy) {
+        this.slots = new CapturedNotification[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new CapturedNotification();
+        }
+        this.policy = policy;
+    }
+    
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+    
+    // Returns false if the notification itself was dropped
+    public boolean offer(String packageName, String key, long postTime, long when,
+                         CharSequence title, CharSequence content, long capturedAt, boolean bankPackage) {
+        lock.lock();
+        try {
+            if (count == slots.length && !makeRoom(bankPackage)) {
+                dropped++;
+                return false;
+            }
+            
+            CapturedNotification slot = slots[(head + count) % slots.length];
+            slot.packageName = packageName;
+            slot.key = key;
+            slot.postTime = postTime;
+            slot.when = when;
+            slot.title = title;
+            slot.content = content;
+            slot.capturedAt = capturedAt;
+            slot.bankPackage = bankPackage;
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Blocks until a notification is available and copies it into out.
+    // Returns false if nothing arrived within the timeout.
+    public boolean poll(CapturedNotification out, long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            long nanos = unit.toNanos(timeout);
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            
+            CapturedNotification slot = slots[head];
+            out.copyFrom(slot);
+            slot.clear();
+            head = (head + 1) % slots.length;
+            count--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Called with the lock held and the buffer full. Returns true if a slot was freed.
+    private boolean makeRoom(boolean incomingIsBank) {
+        switch (policy) {
+            case DROP_NEWEST:
+                return false;
+                
+            case DROP_NON_BANK_FIRST:
+                if (!incomingIsBank) {
+                    return false;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (!slots[(head + i) % slots.length].bankPackage) {
+                        removeAt(i);
+                        dropped++;
+                        return true;
+                    }
+                }
+                // Only bank notifications are queued, keep the newest ones
+                removeAt(0);
+                dropped++;
+                return true;
+                
+            case DROP_OLDEST:
+            default:
+                removeAt(0);
+                dropped++;
+                return true;
+        }
+    }
+    
+    // Removes the entry at the given queue position, shifting later entries
+    // forward. Slot objects are rotated rather than reallocated.
+    private void removeAt(int position) {
+        int index = (head + position) % slots.length;
+        CapturedNotification removed = slots[index];
+        removed.clear();
+        for (int i = position; i < count - 1; i++) {
+            int current = (head + i) % slots.length;
+            int next = (head + i + 1) % slots.length;
+            slots[current] = slots[next];
+        }
+        slots[(head + count - 1) % slots.length] = removed;
+        count--;
+    }
+}
\ No newline at end of file
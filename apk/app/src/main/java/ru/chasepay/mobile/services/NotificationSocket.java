@@ -0,0 +1,13 @@
+package ru.chasepay.mobile.services;
+
+import java.io.IOException;
+
+import ru.chasepay.mobile.models.NotificationAckResponse;
+import ru.chasepay.mobile.models.NotificationBatchRequest;
+
+// What the uploader needs from the ping WebSocket to send batches over it
+interface NotificationSocket {
+    boolean canCarryNotifications();
+
+    NotificationAckResponse sendNotifications(NotificationBatchRequest batch, long timeoutMs) throws IOException;
+}
\ No newline at end of file
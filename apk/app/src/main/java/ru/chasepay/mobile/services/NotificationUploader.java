@@ -0,0 +1,404 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Response;
+import ru.chasepay.mobile.api.ApiClient;
+import ru.chasepay.mobile.api.DeviceApi;
+import ru.chasepay.mobile.models.NotificationAckResponse;
+import ru.chasepay.mobile.models.NotificationBatchRequest;
+
+// Drains the notification outbox in the background. Entries leave the outbox
+// only after the server accepted them; failures are retried with backoff.
+// Each entry is sent with its outbox id as sequence number, so the server can
+// drop repeats and acknowledge the highest sequence it holds without gaps.
+// Batches ride the ping WebSocket when it is healthy and the server accepts
+// notification frames, otherwise they go over HTTP.
+public class NotificationUploader {
+    private static final String TAG = "NotificationUploader";
+    private static final String PREFS_NAME = "ChasePrefs";
+    private static final String KEY_DEVICE_TOKEN = "device_token";
+    private static final String KEY_STREAM_ID = "notification_stream_id";
+
+    static final int BATCH_SIZE = 20;
+    // Bursty apps post several notifications per event, wait briefly so they share one request
+    private static final long MAX_FLUSH_DELAY = 75;
+    private static final long RETRY_BASE_DELAY = TimeUnit.SECONDS.toMillis(2);
+    private static final long RETRY_MAX_DELAY = TimeUnit.MINUTES.toMillis(1);
+    // Past this the socket is treated as stalled and the batch goes over HTTP
+    private static final long SOCKET_ACK_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+
+    private final NotificationOutbox outbox;
+    private final SharedPreferences prefs;
+    private final DeviceApi deviceApi;
+    private final DeliveryMetrics metrics;
+    private final NotificationSocket socket;
+    private final DrainScheduler drains = new DrainScheduler(this::drain);
+
+    private int pendingSinceFlush = 0;
+    private int consecutiveFailures = 0;
+    private boolean waitingForNetwork = false;
+    // Ask the server what it already has before the next drain
+    private boolean reconcilePending = true;
+    private String streamId;
+    // Cleared when the server does not know the batch endpoint yet
+    private volatile boolean batchSupported = true;
+    // Cleared when the server has no sequence cursor endpoint
+    private volatile boolean cursorSupported = true;
+
+    private static NotificationUploader instance;
+
+    public static synchronized NotificationUploader getInstance(Context context) {
+        if (instance == null) {
+            instance = new NotificationUploader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NotificationUploader(Context context) {
+        this(NotificationOutbox.getInstance(context),
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                ApiClient.getInstance().create(DeviceApi.class),
+                DeliveryMetrics.getInstance(context),
+                DevicePingService.getInstance(context));
+    }
+
+    NotificationUploader(NotificationOutbox outbox, SharedPreferences prefs, DeviceApi deviceApi,
+                         DeliveryMetrics metrics, NotificationSocket socket) {
+        this.outbox = outbox;
+        this.prefs = prefs;
+        this.deviceApi = deviceApi;
+        this.metrics = metrics;
+        this.socket = socket;
+    }
+
+    // Request a drain of whatever is already in the outbox
+    public synchronized void kick() {
+        if (isBackingOff()) {
+            return;
+        }
+        scheduleDrain(0);
+    }
+
+    // Called after each outbox append. While uploads are failing the retry
+    // backoff is kept.
+    public synchronized void onEnqueued(NotificationLane lane) {
+        pendingSinceFlush++;
+        if (isBackingOff()) {
+            return;
+        }
+        scheduleDrain(flushDelay(lane, pendingSinceFlush));
+    }
+
+    // A full batch is flushed at once. Otherwise the transaction lane waits
+    // MAX_FLUSH_DELAY, so the several notifications a bank posts per payment
+    // go out in one request, and lower lanes wait up to their deferral to ride
+    // along with the next drain instead of waking the radio on their own.
+    static long flushDelay(NotificationLane lane, int pendingSinceFlush) {
+        if (pendingSinceFlush >= BATCH_SIZE) {
+            return 0;
+        }
+        return Math.max(MAX_FLUSH_DELAY, lane.maxDeferral);
+    }
+
+    // Called when a transport reports the server is reachable again. Skips the
+    // backoff only if the last upload failed because of the network.
+    public synchronized void onConnectivityRestored() {
+        if (waitingForNetwork) {
+            Log.d(TAG, "Connectivity restored, retrying outbox upload");
+            waitingForNetwork = false;
+            scheduleDrain(0);
+        }
+    }
+
+    // Called when a transport (re)connects. Whatever was in flight when the
+    // connection dropped may have reached the server, so the outbox is
+    // reconciled against the server's cursor before anything is resent.
+    public synchronized void onReconnected() {
+        reconcilePending = true;
+        waitingForNetwork = false;
+        scheduleDrain(0);
+    }
+
+    // Drain now, ignoring any retry backoff. Used when the server asks for it.
+    public synchronized void flushNow() {
+        waitingForNetwork = false;
+        scheduleDrain(0);
+    }
+
+    private boolean isBackingOff() {
+        return consecutiveFailures > 0 && drains.isPending();
+    }
+
+    private void scheduleDrain(long delayMs) {
+        drains.request(delayMs);
+    }
+
+    private void drain() {
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (deviceToken == null) {
+            Log.w(TAG, "No device token, outbox upload postponed");
+            return;
+        }
+
+        if (takeReconcilePending()) {
+            reconcile(deviceToken);
+        }
+
+        // Every drain empties all lanes, so deferred entries piggyback on the
+        // wakeup a transaction or retry already paid for
+        while (true) {
+            synchronized (this) {
+                pendingSinceFlush = 0;
+            }
+            List<NotificationOutbox.Entry> batch = outbox.peek(BATCH_SIZE);
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            UploadResult result = null;
+            if (socket.canCarryNotifications()) {
+                result = uploadOverSocket(batch);
+            }
+            if (result == null) {
+                result = batchSupported
+                        ? uploadBatch(deviceToken, batch)
+                        : uploadEach(deviceToken, batch);
+            }
+
+            int removed = result.acked
+                    + outbox.remove(result.delivered)
+                    + outbox.remove(result.rejected);
+
+            if (result.failed) {
+                List<NotificationOutbox.Entry> attempted = new ArrayList<>(batch);
+                attempted.removeAll(result.delivered);
+                attempted.removeAll(result.rejected);
+                outbox.markAttempted(attempted);
+                scheduleRetry(result.networkError);
+                return;
+            }
+            if (removed == 0) {
+                // The rows are still there, peeking again would resend the same batch forever
+                Log.e(TAG, "Uploaded batch could not be removed from the outbox");
+                scheduleRetry(false);
+                return;
+            }
+
+            onBatchDelivered();
+            Log.d(TAG, "Uploaded " + result.delivered.size() + " notifications, " + outbox.size() + " left in outbox");
+        }
+    }
+
+    // Returns null if the batch has to go over HTTP instead. The server drops
+    // repeated sequences, so a frame that was stored but not acked in time is
+    // safe to resend.
+    private UploadResult uploadOverSocket(List<NotificationOutbox.Entry> batch) {
+        try {
+            long sentAt = System.currentTimeMillis();
+            NotificationAckResponse ack = socket.sendNotifications(buildBatchRequest(batch), SOCKET_ACK_TIMEOUT);
+            if ("error".equals(ack.status)) {
+                Log.w(TAG, "Server refused notification frame: " + ack.message + ", using HTTP");
+                return null;
+            }
+            UploadResult result = new UploadResult();
+            result.delivered.addAll(batch);
+            recordDelivered(batch, sentAt);
+            result.acked += applyAck(ack);
+            return result;
+        } catch (IOException e) {
+            Log.w(TAG, "WebSocket delivery failed: " + e.getMessage() + ", using HTTP");
+            return null;
+        }
+    }
+
+    private NotificationBatchRequest buildBatchRequest(List<NotificationOutbox.Entry> batch) {
+        NotificationBatchRequest request = new NotificationBatchRequest();
+        request.notifications = new ArrayList<>(batch.size());
+        for (NotificationOutbox.Entry entry : batch) {
+            stampSequence(entry);
+            request.notifications.add(entry.request);
+        }
+        request.stream = getStreamId();
+        request.floorSeq = outbox.floorSeq();
+        return request;
+    }
+
+    private UploadResult uploadBatch(String deviceToken, List<NotificationOutbox.Entry> batch) {
+        NotificationBatchRequest request = buildBatchRequest(batch);
+
+        UploadResult result = new UploadResult();
+        try {
+            long sentAt = System.currentTimeMillis();
+            Response<NotificationAckResponse> response = deviceApi.sendNotificationBatch("Bearer " + deviceToken, request).execute();
+            if (response.isSuccessful()) {
+                result.delivered.addAll(batch);
+                result.acked += applyAck(response.body());
+                recordDelivered(batch, sentAt);
+            } else if (response.code() == 404 || response.code() == 405 || response.code() == 501) {
+                Log.w(TAG, "Batch endpoint not available (" + response.code() + "), sending one by one");
+                batchSupported = false;
+                return uploadEach(deviceToken, batch);
+            } else if (isPermanentFailure(response.code())) {
+                // One bad entry rejects the whole batch, resend individually to isolate it
+                Log.e(TAG, "Server rejected batch: " + response.code() + ", sending one by one");
+                return uploadEach(deviceToken, batch);
+            } else {
+                Log.e(TAG, "Failed to upload batch of " + batch.size() + ": " + response.code());
+                result.failed = true;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Network error uploading batch: " + e.getMessage());
+            result.failed = true;
+            result.networkError = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error uploading batch", e);
+            result.failed = true;
+        }
+        return result;
+    }
+
+    private UploadResult uploadEach(String deviceToken, List<NotificationOutbox.Entry> batch) {
+        UploadResult result = new UploadResult();
+        for (NotificationOutbox.Entry entry : batch) {
+            try {
+                stampSequence(entry);
+                long sentAt = System.currentTimeMillis();
+                Response<NotificationAckResponse> response = deviceApi.sendNotification("Bearer " + deviceToken, entry.request).execute();
+                if (response.isSuccessful()) {
+                    result.delivered.add(entry);
+                    result.acked += applyAck(response.body());
+                    recordDelivered(Collections.singletonList(entry), sentAt);
+                } else if (isPermanentFailure(response.code())) {
+                    Log.e(TAG, "Server rejected notification " + entry.id + ": " + response.code());
+                    result.rejected.add(entry);
+                } else {
+                    Log.e(TAG, "Failed to upload notification " + entry.id + ": " + response.code());
+                    result.failed = true;
+                    break;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Network error uploading notification " + entry.id + ": " + e.getMessage());
+                result.failed = true;
+                result.networkError = true;
+                break;
+            } catch (Exception e) {
+                Log.e(TAG, "Error uploading notification " + entry.id, e);
+                result.failed = true;
+                break;
+            }
+        }
+        return result;
+    }
+
+    private synchronized boolean takeReconcilePending() {
+        boolean pending = reconcilePending;
+        reconcilePending = false;
+        return pending;
+    }
+
+    // Drops outbox entries the server already stored, e.g. when the response
+    // to an earlier upload was lost with the connection
+    private void reconcile(String deviceToken) {
+        if (!cursorSupported) {
+            return;
+        }
+        try {
+            Response<NotificationAckResponse> response = deviceApi.getNotificationCursor("Bearer " + deviceToken, getStreamId()).execute();
+            if (response.isSuccessful()) {
+                applyAck(response.body());
+            } else if (response.code() == 404 || response.code() == 405 || response.code() == 501) {
+                Log.w(TAG, "Sequence cursor not available (" + response.code() + "), skipping reconciliation");
+                cursorSupported = false;
+            } else {
+                Log.e(TAG, "Failed to fetch sequence cursor: " + response.code());
+            }
+        } catch (Exception e) {
+            // The drain that follows will hit the same problem and back off
+            Log.e(TAG, "Error fetching sequence cursor: " + e.getMessage());
+        }
+    }
+
+    // Returns how many outbox rows the ack removed
+    private int applyAck(NotificationAckResponse ack) {
+        if (ack == null || ack.ackSeq == null) {
+            return 0;
+        }
+        long lastAssigned = outbox.lastAssignedSeq();
+        if (ack.ackSeq > lastAssigned) {
+            // Cursor from another install or a server bug, trusting it would wipe the outbox
+            Log.w(TAG, "Ignoring ack " + ack.ackSeq + " beyond last assigned sequence " + lastAssigned);
+            return 0;
+        }
+        int removed = outbox.removeUpTo(ack.ackSeq);
+        if (removed > 0) {
+            Log.d(TAG, "Server already has " + removed + " notifications up to sequence " + ack.ackSeq);
+        }
+        return removed;
+    }
+
+    private void stampSequence(NotificationOutbox.Entry entry) {
+        entry.request.stream = getStreamId();
+        entry.request.seq = entry.id;
+    }
+
+    // Sequence numbers restart with a fresh outbox after reinstall or data
+    // wipe, the stream id tells the server it is a new sequence
+    private synchronized String getStreamId() {
+        if (streamId == null) {
+            streamId = prefs.getString(KEY_STREAM_ID, null);
+            if (streamId == null) {
+                streamId = UUID.randomUUID().toString();
+                prefs.edit().putString(KEY_STREAM_ID, streamId).apply();
+            }
+        }
+        return streamId;
+    }
+
+    private void recordDelivered(List<NotificationOutbox.Entry> entries, long sentAt) {
+        long ackedAt = System.currentTimeMillis();
+        for (NotificationOutbox.Entry entry : entries) {
+            metrics.record(DeliveryMetrics.Stage.SENT, entry.enqueuedAt, sentAt);
+            metrics.record(DeliveryMetrics.Stage.ACKED, sentAt, ackedAt);
+            metrics.record(DeliveryMetrics.Stage.END_TO_END, entry.postedAt, ackedAt);
+        }
+    }
+
+    private synchronized void onBatchDelivered() {
+        consecutiveFailures = 0;
+        waitingForNetwork = false;
+    }
+
+    private synchronized void scheduleRetry(boolean networkError) {
+        consecutiveFailures++;
+        waitingForNetwork = networkError;
+        long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(consecutiveFailures - 1, 10));
+        Log.d(TAG, "Retrying outbox upload in " + delay + "ms");
+        scheduleDrain(delay);
+    }
+
+    // Client errors that will never succeed on retry. Auth errors are retried,
+    // the device token may be re-issued while entries wait in the outbox.
+    private static boolean isPermanentFailure(int code) {
+        return code >= 400 && code < 500
+                && code != 401 && code != 403 && code != 408 && code != 429;
+    }
+
+    private static class UploadResult {
+        final List<NotificationOutbox.Entry> delivered = new ArrayList<>();
+        final List<NotificationOutbox.Entry> rejected = new ArrayList<>();
+        // Rows the server's ack cursor already removed
+        int acked = 0;
+        boolean failed = false;
+        boolean networkError = false;
+    }
+}
\ No newline at end of file
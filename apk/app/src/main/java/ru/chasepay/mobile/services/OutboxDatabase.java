@@ -0,0 +1,85 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+// On-disk store for captured notifications. Everything is written here before
+// any network call, so nothing is lost if the process dies or the network drops.
+class OutboxDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "OutboxDatabase";
+    private static final String DB_NAME = "notification_outbox.db";
+    private static final int DB_VERSION = 4;
+
+    static final String TABLE_OUTBOX = "outbox";
+    static final String COL_ID = "id";
+    static final String COL_PAYLOAD = "payload";
+    static final String COL_CREATED_AT = "created_at";
+    static final String COL_ATTEMPTS = "attempts";
+    static final String COL_LANE = "lane";
+    static final String COL_POSTED_AT = "posted_at";
+
+    static final String TABLE_SEEN = "seen";
+    static final String COL_FINGERPRINT = "fingerprint";
+    static final String COL_POST_TIME = "post_time";
+
+    private static OutboxDatabase instance;
+
+    static synchronized OutboxDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = new OutboxDatabase(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private OutboxDatabase(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        // WAL lets the uploader read while the listener appends
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        Log.d(TAG, "Creating outbox database");
+        // AUTOINCREMENT so ids are never reused after the tail is truncated
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_PAYLOAD + " TEXT NOT NULL, "
+                + COL_CREATED_AT + " INTEGER NOT NULL, "
+                + COL_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + COL_LANE + " INTEGER NOT NULL DEFAULT 0, "
+                + COL_POSTED_AT + " INTEGER NOT NULL DEFAULT 0)");
+        createLaneIndex(db);
+        createSeenTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "Upgrading outbox database " + oldVersion + " -> " + newVersion);
+        if (oldVersion < 2) {
+            createSeenTable(db);
+        }
+        if (oldVersion < 3) {
+            // Everything queued before lanes existed was sent as a transaction
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COL_LANE + " INTEGER NOT NULL DEFAULT 0");
+            createLaneIndex(db);
+        }
+        if (oldVersion < 4) {
+            // Post time of the source notification, 0 for rows queued before it was tracked
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COL_POSTED_AT + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+    
+    // Drain order is lane first, then capture order within a lane
+    private void createLaneIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX outbox_lane_id ON " + TABLE_OUTBOX + " (" + COL_LANE + ", " + COL_ID + ")");
+    }
+
+    // Fingerprints of notifications already shipped, used to drop updates and reposts
+    private void createSeenTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_SEEN + " ("
+                + COL_FINGERPRINT + " INTEGER PRIMARY KEY, "
+                + COL_POST_TIME + " INTEGER NOT NULL)");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+package ru.chasepay.mobile.services;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Response;
+
+// Delays between reconnect attempts. Uses decorrelated jitter (each delay is
+// drawn between the base and three times the previous one, capped), so a
+// fleet that lost the server at the same moment spreads its reconnects
+// instead of arriving in lockstep. After too many failures in a row the
+// circuit opens and attempts pause for a cooldown; the first attempt after
+// it either closes the circuit or opens it again.
+//
+// The server can push the next attempt back (Retry-After, a close reason, a
+// slot in an error message). Each device also has a fixed phase derived from
+// its token, which spreads a fleet that the server dropped all at once (a
+// restart) over a window instead of every device returning in the same
+// couple of seconds.
+public class ReconnectPolicy {
+    private static final String TAG = "ReconnectPolicy";
+    
+    private static final long BASE_DELAY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_DELAY = TimeUnit.MINUTES.toMillis(1);
+    private static final int BREAKER_THRESHOLD = 8;
+    private static final long BREAKER_COOLDOWN = TimeUnit.MINUTES.toMillis(5);
+    // Window a server-wide drop is spread over
+    private static final long STORM_SPREAD = TimeUnit.SECONDS.toMillis(30);
+    // Devices given the same hint still arrive spread over this much
+    private static final long HINT_SPREAD = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_HINT = TimeUnit.MINUTES.toMillis(10);
+    
+    private final String name;
+    private Random random = new Random();
+    private String seededWith;
+    private double phase = 0.5;
+    private long notBefore = 0;
+    
+    private long previousDelay = BASE_DELAY;
+    private int consecutiveFailures = 0;
+    private long circuitOpenUntil = 0;
+    
+    public ReconnectPolicy(String name) {
+        this.name = name;
+    }
+    
+    // Makes the jitter sequence and phase a fixed function of the device, so
+    // devices that failed together still diverge and keep their order
+    public synchronized void seed(String deviceToken) {
+        if (deviceToken == null || deviceToken.equals(seededWith)) {
+            return;
+        }
+        seededWith = deviceToken;
+        long hash = hash64(deviceToken + "/" + name);
+        random = new Random(hash);
+        phase = devicePhase(deviceToken);
+    }
+    
+    // Server asked us to stay away this long; the next delay will not be shorter
+    public synchronized void deferFor(long delayMs) {
+        long bounded = Math.max(0, Math.min(MAX_HINT, delayMs));
+        long until = System.currentTimeMillis() + bounded + (long) (phase * HINT_SPREAD);
+        notBefore = Math.max(notBefore, until);
+        Log.d(TAG, name + ": server asked to wait " + bounded + "ms");
+    }
+    
+    // The server went away for every device at once (restart, overload, refused
+    // connections): this device comes back at its own point in the window
+    public synchronized void onServerWideDrop() {
+        long until = System.currentTimeMillis() + (long) (phase * STORM_SPREAD);
+        notBefore = Math.max(notBefore, until);
+    }
+    
+    // Records a failed attempt and returns how long to wait before the next one
+    public synchronized long nextDelay() {
+        long now = System.currentTimeMillis();
+        consecutiveFailures++;
+        
+        if (consecutiveFailures >= BREAKER_THRESHOLD) {
+            // Half-open after the cooldown: one attempt, a failure re-opens immediately
+            consecutiveFailures = BREAKER_THRESHOLD - 1;
+            long delay = Math.max(BREAKER_COOLDOWN + jitter(BASE_DELAY, MAX_DELAY), notBefore - now);
+            notBefore = 0;
+            circuitOpenUntil = now + delay;
+            Log.w(TAG, name + ": circuit open for " + delay + "ms");
+            return delay;
+        }
+        
+        long delay = jitter(BASE_DELAY, Math.min(MAX_DELAY, previousDelay * 3));
+        previousDelay = delay;
+        if (notBefore > now) {
+            delay = Math.max(delay, notBefore - now);
+            notBefore = 0;
+        }
+        return delay;
+    }
+    
+    // A connection proved healthy
+    public synchronized void onSuccess() {
+        if (consecutiveFailures > 0 || circuitOpenUntil > 0) {
+            Log.d(TAG, name + ": connection healthy, backoff reset");
+        }
+        reset();
+    }
+    
+    // Network came back, whatever failed before may work now
+    public synchronized void reset() {
+        previousDelay = BASE_DELAY;
+        consecutiveFailures = 0;
+        circuitOpenUntil = 0;
+        notBefore = 0;
+    }
+    
+    public synchronized boolean isCircuitOpen() {
+        return System.currentTimeMillis() < circuitOpenUntil;
+    }
+    
+    public synchronized long getCircuitRemaining() {
+        return Math.max(0, circuitOpenUntil - System.currentTimeMillis());
+    }
+    
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+    
+    // Position of this device in [0, 1), stable across restarts
+    public static double devicePhase(String deviceToken) {
+        if (deviceToken == null) {
+            return 0.5;
+        }
+        return (hash64(deviceToken) >>> 11) / (double) (1L << 53);
+    }
+    
+    // Retry-After as seconds or an HTTP date, -1 when absent or unreadable
+    public static long retryAfterMs(Response response) {
+        String header = response != null ? response.header("Retry-After") : null;
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim()));
+        } catch (NumberFormatException e) {
+            // Not seconds, try a date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date date = format.parse(header.trim());
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+    
+    // A close reason may carry {"retryAfterMs": n} or just the number
+    public static long retryAfterMs(String closeReason) {
+        if (closeReason == null || closeReason.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(closeReason.trim());
+        } catch (NumberFormatException e) {
+            // Not a bare number
+        }
+        try {
+            return new JSONObject(closeReason).optLong("retryAfterMs", -1);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+    
+    // 64-bit FNV-1a, String.hashCode() is too narrow to spread a fleet evenly
+    private static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        // Final mix so similar tokens land far apart
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+    
+    private long jitter(long min, long max) {
+        if (max <= min) {
+            return min;
+        }
+        return min + (long) (random.nextDouble() * (max - min));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,219 @@
+package ru.chasepay.mobile.services;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
+import ru.chasepay.mobile.api.HttpClientProvider;
+
+// Server-Sent Events downstream for carriers that break WebSocket upgrades
+// but pass streaming HTTP responses. The stream only carries server to device
+// traffic; heartbeats and results go up as ordinary requests on the shared
+// pool, which multiplexes them with the stream when the server speaks HTTP/2.
+// A reconnect resumes with Last-Event-ID so nothing sent meanwhile is missed.
+class SseTransport extends EventSourceListener {
+    private static final String TAG = "SseTransport";
+    private static final String KEY_DEVICE_TOKEN = "device_token";
+
+    // The server sends a comment or event at least every 30 s, a stream quiet
+    // for twice that is dead even if the socket looks open
+    private static final long STREAM_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    // A stream open this long worked even if no event came, the server rotates
+    // streams and only comments keep a quiet one alive
+    private static final long STREAM_PROVEN_AFTER = TimeUnit.MINUTES.toMillis(2);
+
+    interface Listener {
+        void onStreamOpened();
+        void onStreamEvent(String type, JSONObject data);
+        // The server ended the stream, a new one is opened right after
+        void onStreamClosed();
+        // unsupported is true when the server has no event stream at all
+        void onStreamFailure(String reason, boolean unsupported);
+    }
+
+    private final SharedPreferences prefs;
+    private final Listener listener;
+    private final Handler handler;
+    private final ReconnectPolicy backoff = new ReconnectPolicy("sse");
+    private final EventSource.Factory factory;
+    private final String streamUrl;
+
+    private volatile boolean isRunning = false;
+    private volatile EventSource eventSource;
+    private volatile String lastEventId;
+    private volatile long streamOpenedAt;
+    private volatile boolean streamDelivered;
+    private Runnable pendingReconnect;
+
+    SseTransport(SharedPreferences prefs, Listener listener) {
+        this(prefs, listener, ru.chasepay.mobile.BuildConfig.BASE_URL.replace("/api", "") + "/api/device/events");
+    }
+
+    // Tests point the stream at a local server
+    SseTransport(SharedPreferences prefs, Listener listener, String streamUrl) {
+        this.prefs = prefs;
+        this.listener = listener;
+        this.streamUrl = streamUrl;
+        this.handler = new Handler(Looper.getMainLooper());
+
+        OkHttpClient client = HttpClientProvider.newBuilder()
+                .readTimeout(STREAM_IDLE_TIMEOUT, TimeUnit.MILLISECONDS)
+                .build();
+        this.factory = EventSources.createFactory(client);
+    }
+
+    synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        Log.d(TAG, "Starting event stream");
+        isRunning = true;
+        backoff.reset();
+        connect();
+    }
+
+    synchronized void stop() {
+        if (!isRunning) {
+            return;
+        }
+        Log.d(TAG, "Stopping event stream");
+        isRunning = false;
+        if (pendingReconnect != null) {
+            handler.removeCallbacks(pendingReconnect);
+            pendingReconnect = null;
+        }
+        EventSource source = eventSource;
+        eventSource = null;
+        if (source != null) {
+            source.cancel();
+        }
+    }
+
+    private synchronized void connect() {
+        if (!isRunning) {
+            return;
+        }
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (deviceToken == null) {
+            Log.e(TAG, "Cannot open event stream - no device token");
+            return;
+        }
+        backoff.seed(deviceToken);
+
+        Request.Builder request = new Request.Builder()
+                .url(streamUrl)
+                .addHeader("x-device-token", deviceToken);
+        if (lastEventId != null) {
+            request.addHeader("Last-Event-ID", lastEventId);
+        }
+        streamOpenedAt = 0;
+        streamDelivered = false;
+        eventSource = factory.newEventSource(request.build(), this);
+    }
+
+    @Override
+    public void onOpen(EventSource source, Response response) {
+        if (!isCurrent(source)) {
+            return;
+        }
+        Log.d(TAG, "Event stream open");
+        streamOpenedAt = System.currentTimeMillis();
+        listener.onStreamOpened();
+    }
+
+    @Override
+    public void onEvent(EventSource source, String id, String type, String data) {
+        if (!isCurrent(source)) {
+            return;
+        }
+        if (id != null) {
+            lastEventId = id;
+        }
+        streamDelivered = true;
+        try {
+            JSONObject payload = data.isEmpty() ? new JSONObject() : new JSONObject(data);
+            listener.onStreamEvent(type != null ? type : "message", payload);
+        } catch (Exception e) {
+            Log.e(TAG, "Bad event " + type + ": " + data, e);
+        }
+    }
+
+    @Override
+    public void onClosed(EventSource source) {
+        if (!isCurrent(source)) {
+            return;
+        }
+        // The server ended the stream on purpose, open a new one
+        Log.d(TAG, "Event stream closed by server");
+        settleBackoff();
+        listener.onStreamClosed();
+        scheduleReconnect();
+    }
+
+    @Override
+    public void onFailure(EventSource source, Throwable t, Response response) {
+        if (!isCurrent(source)) {
+            return;
+        }
+        int code = response != null ? response.code() : 0;
+        boolean unsupported = code == 404 || code == 405 || code == 501;
+        String reason = code != 0 ? "sse HTTP " + code : "sse " + (t != null ? t.getMessage() : "failure");
+        Log.e(TAG, "Event stream failed: " + reason);
+        settleBackoff();
+        long retryAfter = ReconnectPolicy.retryAfterMs(response);
+        if (retryAfter >= 0) {
+            backoff.deferFor(retryAfter);
+        } else if (code >= 500 || code == 429 || t instanceof ConnectException) {
+            backoff.onServerWideDrop();
+        }
+        listener.onStreamFailure(reason, unsupported);
+        if (!unsupported) {
+            scheduleReconnect();
+        }
+    }
+
+    // Callbacks of a replaced or stopped stream are ignored. The check takes the
+    // lock because the call is already running when newEventSource() returns,
+    // a fast answer would otherwise find eventSource not yet assigned.
+    private synchronized boolean isCurrent(EventSource source) {
+        return source == eventSource;
+    }
+
+    // A stream that delivered events or stayed up a while proved the path
+    // works, so routine rotation by the server does not build up the backoff.
+    // Opens that fail or end at once keep counting toward it.
+    private void settleBackoff() {
+        long openedAt = streamOpenedAt;
+        if (openedAt > 0 && (streamDelivered || System.currentTimeMillis() - openedAt >= STREAM_PROVEN_AFTER)) {
+            backoff.onSuccess();
+        }
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (!isRunning || pendingReconnect != null) {
+            return;
+        }
+        eventSource = null;
+        long delay = backoff.nextDelay();
+        Log.d(TAG, "Reopening event stream in " + delay + "ms");
+        pendingReconnect = () -> {
+            synchronized (SseTransport.this) {
+                pendingReconnect = null;
+            }
+            connect();
+        };
+        handler.postDelayed(pendingReconnect, delay);
+    }
+}
\ No newline at end of file
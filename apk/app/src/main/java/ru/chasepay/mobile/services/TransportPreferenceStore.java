@@ -0,0 +1,245 @@
+package ru.chasepay.mobile.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.RouteInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Remembers, per network, how each connection mode fared: how often it
+// connected versus broke, and its recent round-trip times. Devices move
+// between the same few networks every day, so the next connect on a known
+// network can start with the mode that worked there instead of walking the
+// whole fallback ladder again. Networks are identified by a hash, never by
+// raw SSID or addresses.
+class TransportPreferenceStore {
+    private static final String TAG = "TransportPreference";
+    private static final String PREFS_NAME = "ChasePrefs";
+    private static final String KEY_STORE = "transport_preferences";
+
+    private static final int MAX_NETWORKS = 16;
+    private static final int RTT_SAMPLES = 16;
+    // Fewer outcomes than this on a network are not worth acting on
+    private static final int MIN_OUTCOMES = 3;
+    private static final double MIN_SUCCESS_RATE = 0.5;
+
+    private static TransportPreferenceStore instance;
+
+    private final SharedPreferences prefs;
+    private final JSONObject networks;
+
+    static synchronized TransportPreferenceStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new TransportPreferenceStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private TransportPreferenceStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        JSONObject loaded;
+        try {
+            loaded = new JSONObject(prefs.getString(KEY_STORE, "{}"));
+        } catch (Exception e) {
+            Log.e(TAG, "Dropping unreadable transport preferences", e);
+            loaded = new JSONObject();
+        }
+        this.networks = loaded;
+    }
+
+    synchronized void recordSuccess(String networkKey, String mode) {
+        increment(networkKey, mode, "ok");
+    }
+
+    synchronized void recordFailure(String networkKey, String mode) {
+        increment(networkKey, mode, "fail");
+    }
+
+    // Kept in memory only, persisted with the next outcome
+    synchronized void recordRtt(String networkKey, String mode, long rttMs) {
+        try {
+            JSONObject stats = modeStats(networkKey, mode);
+            JSONArray samples = stats.optJSONArray("rtt");
+            if (samples == null) {
+                samples = new JSONArray();
+                stats.put("rtt", samples);
+            }
+            if (samples.length() >= RTT_SAMPLES) {
+                samples.remove(0);
+            }
+            samples.put(rttMs);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to record RTT", e);
+        }
+    }
+
+    private void increment(String networkKey, String mode, String counter) {
+        try {
+            JSONObject stats = modeStats(networkKey, mode);
+            stats.put(counter, stats.optInt(counter) + 1);
+            prefs.edit().putString(KEY_STORE, networks.toString()).apply();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to record " + counter + " for " + mode, e);
+        }
+    }
+
+    // Mode with the best success rate on this network, the lower median RTT
+    // breaking near-ties. Null when nothing here is known well enough.
+    synchronized String preferredMode(String networkKey) {
+        JSONObject network = networks.optJSONObject(networkKey);
+        if (network == null) {
+            return null;
+        }
+        JSONObject modes = network.optJSONObject("modes");
+        if (modes == null) {
+            return null;
+        }
+        String best = null;
+        double bestRate = 0;
+        long bestRtt = Long.MAX_VALUE;
+        Iterator<String> names = modes.keys();
+        while (names.hasNext()) {
+            String mode = names.next();
+            JSONObject stats = modes.optJSONObject(mode);
+            int ok = stats.optInt("ok");
+            int total = ok + stats.optInt("fail");
+            if (total < MIN_OUTCOMES) {
+                continue;
+            }
+            double rate = (double) ok / total;
+            long rtt = medianRtt(stats);
+            boolean better = rate > bestRate + 0.1 || (Math.abs(rate - bestRate) <= 0.1 && rtt < bestRtt);
+            if (rate >= MIN_SUCCESS_RATE && (best == null || better)) {
+                best = mode;
+                bestRate = rate;
+                bestRtt = rtt;
+            }
+        }
+        return best;
+    }
+
+    private JSONObject modeStats(String networkKey, String mode) throws JSONException {
+        JSONObject network = networks.optJSONObject(networkKey);
+        if (network == null) {
+            evictOldest();
+            network = new JSONObject().put("modes", new JSONObject());
+            networks.put(networkKey, network);
+        }
+        network.put("seen", System.currentTimeMillis());
+        JSONObject modes = network.getJSONObject("modes");
+        JSONObject stats = modes.optJSONObject(mode);
+        if (stats == null) {
+            stats = new JSONObject();
+            modes.put(mode, stats);
+        }
+        return stats;
+    }
+
+    private void evictOldest() {
+        if (networks.length() < MAX_NETWORKS) {
+            return;
+        }
+        String oldest = null;
+        long oldestSeen = Long.MAX_VALUE;
+        Iterator<String> keys = networks.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            long seen = networks.optJSONObject(key).optLong("seen");
+            if (seen < oldestSeen) {
+                oldest = key;
+                oldestSeen = seen;
+            }
+        }
+        networks.remove(oldest);
+    }
+
+    private static long medianRtt(JSONObject stats) {
+        JSONArray samples = stats.optJSONArray("rtt");
+        if (samples == null || samples.length() == 0) {
+            return Long.MAX_VALUE;
+        }
+        long[] sorted = new long[samples.length()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.optLong(i);
+        }
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // Stable identity for a network: Wi-Fi SSID and BSSID when readable, else
+    // its gateway and DNS servers; carrier and radio type for cellular.
+    static String networkKey(Context context, Network network) {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (network == null) {
+                network = cm.getActiveNetwork();
+            }
+            NetworkCapabilities capabilities = network != null ? cm.getNetworkCapabilities(network) : null;
+            if (capabilities == null) {
+                return "none";
+            }
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+                return "wifi:" + hash(wifiIdentity(context, cm, network));
+            }
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+                TelephonyManager telephony = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+                String operator = telephony != null ? telephony.getNetworkOperator() : "";
+                NetworkInfo info = cm.getNetworkInfo(network);
+                String radio = info != null ? info.getSubtypeName() : "";
+                return "cell:" + hash(operator + "/" + radio);
+            }
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+                return "ethernet";
+            }
+            return "other";
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to identify network", e);
+            return "unknown";
+        }
+    }
+
+    private static String wifiIdentity(Context context, ConnectivityManager cm, Network network) {
+        WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        WifiInfo info = wifi != null ? wifi.getConnectionInfo() : null;
+        // Without location access these come back as placeholders
+        if (info != null && info.getSSID() != null && !WifiManager.UNKNOWN_SSID.equals(info.getSSID())
+                && info.getBSSID() != null && !"02:00:00:00:00:00".equals(info.getBSSID())) {
+            return info.getSSID() + "/" + info.getBSSID();
+        }
+        StringBuilder identity = new StringBuilder();
+        LinkProperties link = cm.getLinkProperties(network);
+        if (link != null) {
+            for (RouteInfo route : link.getRoutes()) {
+                if (route.isDefaultRoute() && route.getGateway() != null) {
+                    identity.append(route.getGateway().getHostAddress()).append(';');
+                }
+            }
+            for (InetAddress dns : link.getDnsServers()) {
+                identity.append(dns.getHostAddress()).append(';');
+            }
+            if (link.getDomains() != null) {
+                identity.append(link.getDomains());
+            }
+        }
+        return identity.toString();
+    }
+
+    private static String hash(String value) {
+        return Integer.toHexString(value.hashCode());
+    }
+}
\ No newline at end of file
@@ -2,21 +2,28 @@ package ru.chasepay.mobile.services;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Network;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import ru.chasepay.mobile.api.HttpClientProvider;
+import ru.chasepay.mobile.services.ConnectionStateMachine.State;
 import ru.chasepay.mobile.utils.DeviceUtils;
 
 public class UniversalConnectionService {
@@ -24,9 +31,25 @@ public class UniversalConnectionService {
     private static final String PREFS_NAME = "ChasePrefs";
     private static final String KEY_DEVICE_TOKEN = "device_token";
     
+    // How long a WebSocket gets to open while HTTP bridges the gap
+    private static final long RACE_WINDOW = 10000;
+    // How often a fallback mode tries to get back onto the WebSocket
+    private static final long UPGRADE_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+    private static final long MONITOR_PERIOD = 5000;
+    // Extra staleness allowed per device, so a fleet that lost the server
+    // together does not escalate modes on the same tick
+    private static final long MONITOR_SPREAD = 10000;
+    // Event streams in a row that failed without proving they carry data
+    // before SSE is given up on this network
+    private static final int MAX_STREAM_FAILURES = 3;
+    // A stream that stayed up this long outlived its read timeout, so bytes
+    // were arriving even if only keep-alive comments
+    private static final long STREAM_PROVEN_AFTER = TimeUnit.MINUTES.toMillis(2);
+    
     // Connection modes
     private enum ConnectionMode {
         WEBSOCKET,
+        SSE,
         LONG_POLLING,
         HTTP_PING
     }
@@ -34,14 +57,49 @@ public class UniversalConnectionService {
     private Context context;
     private SharedPreferences prefs;
     private Handler handler;
-    private ExecutorService executor;
+    private volatile ExecutorService executor;
     private OkHttpClient httpClient;
     
     private DevicePingService webSocketService;
-    private ConnectionMode currentMode = ConnectionMode.WEBSOCKET;
-    private boolean isRunning = false;
-    private int failureCount = 0;
-    private long lastSuccessfulPing = 0;
+    private HeartbeatScheduler httpHeartbeat;
+    private LongPollTransport longPoll;
+    private SseTransport sse;
+    private ConnectivityMonitor.Listener networkListener;
+    private TransportPreferenceStore preferences;
+    // Identity of the network the current connection runs on
+    private volatile String networkKey = "unknown";
+    // This device's fixed position in [0, 1) for spreading fleet-wide reactions
+    private volatile double devicePhase = 0.5;
+    // The server asked HTTP pings to hold off until then
+    private volatile long httpPingNotBefore = 0;
+    private HeartbeatPolicy heartbeatPolicy;
+    // Touched from the main looper, the executor and OkHttp callback threads
+    private final ConnectionStateMachine state = new ConnectionStateMachine("universal");
+    private volatile ConnectionMode currentMode = ConnectionMode.WEBSOCKET;
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private volatile long lastSuccessfulPing = 0;
+    private Runnable connectionMonitor;
+    // Connect race: the WebSocket is opening and HTTP pings carry liveness until it does
+    private volatile boolean racing = false;
+    private volatile boolean httpWonRace = false;
+    private long raceStartedAt = 0;
+    // A fallback mode is trying the WebSocket in the background
+    private volatile boolean upgradeProbe = false;
+    private final Runnable raceTimeout = this::onRaceTimeout;
+    private final Runnable upgradeAttempt = this::attemptUpgrade;
+    private final Runnable upgradeGiveUp = this::giveUpUpgrade;
+    // Set whenever a new connection is started, cleared by its first success
+    private volatile boolean awaitingFirstSuccess = true;
+    // Set whenever a new connection is started, cleared once the transport
+    // itself confirmed it and the mode was recorded as working on this network
+    private volatile boolean outcomePending = true;
+    // SSE liveness comes from the stream alone, the HTTP pings that run next
+    // to it say nothing about the downstream
+    private volatile boolean streamOpen = false;
+    private volatile long streamOpenedAt = 0;
+    private volatile long lastStreamActivity = 0;
+    private volatile boolean streamCarriedData = false;
+    private final AtomicInteger streamFailures = new AtomicInteger();
     
     private static UniversalConnectionService instance;
     
@@ -58,17 +116,72 @@ public class UniversalConnectionService {
         this.handler = new Handler(Looper.getMainLooper());
         this.executor = Executors.newSingleThreadExecutor();
         
-        this.httpClient = new OkHttpClient.Builder()
+        this.httpClient = HttpClientProvider.newBuilder()
                 .connectTimeout(15, TimeUnit.SECONDS)
-                .readTimeout(30, TimeUnit.SECONDS) // Long timeout for long-polling
+                .readTimeout(30, TimeUnit.SECONDS)
                 .writeTimeout(15, TimeUnit.SECONDS)
                 .build();
         
         this.webSocketService = DevicePingService.getInstance(context);
+        this.heartbeatPolicy = HeartbeatPolicy.getInstance(context);
+        this.httpHeartbeat = new HeartbeatScheduler(context, 1, this::sendHttpPing);
+        this.preferences = TransportPreferenceStore.getInstance(context);
+        this.longPoll = new LongPollTransport(context, prefs, new LongPollTransport.Listener() {
+            @Override
+            public void onPollResponse(JSONObject response) {
+                handlePollResponse(response);
+            }
+            
+            @Override
+            public void onPollFailure(String reason) {
+                onTransportError(reason);
+            }
+        });
+        this.sse = new SseTransport(prefs, new SseTransport.Listener() {
+            @Override
+            public void onStreamOpened() {
+                streamOpenedAt = System.currentTimeMillis();
+                lastStreamActivity = streamOpenedAt;
+                streamCarriedData = false;
+                streamOpen = true;
+                notifyConnectionOpened();
+                confirmTransport(ConnectionMode.SSE);
+            }
+            
+            @Override
+            public void onStreamEvent(String type, JSONObject data) {
+                lastStreamActivity = System.currentTimeMillis();
+                streamCarriedData = true;
+                streamFailures.set(0);
+                handleStreamEvent(type, data);
+            }
+            
+            @Override
+            public void onStreamClosed() {
+                onStreamEnded();
+            }
+            
+            @Override
+            public void onStreamFailure(String reason, boolean unsupported) {
+                if (unsupported) {
+                    // No event stream on this server, move down the ladder now
+                    notifyConnectionFailure();
+                    return;
+                }
+                onStreamEnded();
+                onTransportError(reason);
+                if (streamFailures.incrementAndGet() >= MAX_STREAM_FAILURES && currentMode == ConnectionMode.SSE) {
+                    // Refused, or opened and then buffered by the carrier until the read timeout
+                    Log.w(TAG, MAX_STREAM_FAILURES + " event streams failed in a row, leaving SSE");
+                    streamFailures.set(0);
+                    notifyConnectionFailure();
+                }
+            }
+        });
     }
     
-    public void start() {
-        if (isRunning) {
+    public synchronized void start() {
+        if (state.isActive()) {
             Log.d(TAG, "Service already running");
             return;
         }
@@ -79,36 +192,114 @@ public class UniversalConnectionService {
             return;
         }
         
+        if (!state.moveTo(State.CONNECTING, "start")) {
+            Log.d(TAG, "Service already running");
+            return;
+        }
+        
         Log.d(TAG, "Starting universal connection service");
-        isRunning = true;
-        failureCount = 0;
+        devicePhase = ReconnectPolicy.devicePhase(deviceToken);
+        failureCount.set(0);
+        lastSuccessfulPing = 0;
+        if (executor.isShutdown()) {
+            executor = Executors.newSingleThreadExecutor();
+        }
         
-        // Start with WebSocket
-        startConnection(ConnectionMode.WEBSOCKET);
+        // Start with whatever worked best on this network, WebSocket if unknown
+        networkKey = TransportPreferenceStore.networkKey(context, null);
+        startConnection(preferredMode());
         
         // Start monitoring
         startConnectionMonitor();
+        networkListener = new ConnectivityMonitor.Listener() {
+            @Override
+            public void onNetworkChanged(Network network) {
+                // Whatever is open is bound to the previous network, start over on the new one
+                handler.post(() -> onNetworkSwitched(network));
+            }
+            
+            @Override
+            public void onNetworkLost() {
+                state.moveTo(State.DEGRADED, "network lost");
+            }
+        };
+        ConnectivityMonitor.getInstance(context).addListener(networkListener);
     }
     
-    public void stop() {
+    public synchronized void stop() {
         Log.d(TAG, "Stopping universal connection service");
-        isRunning = false;
+        state.moveTo(State.STOPPED, "stop");
+        if (connectionMonitor != null) {
+            handler.removeCallbacks(connectionMonitor);
+            connectionMonitor = null;
+        }
+        if (networkListener != null) {
+            ConnectivityMonitor.getInstance(context).removeListener(networkListener);
+            networkListener = null;
+        }
+        racing = false;
+        upgradeProbe = false;
+        handler.removeCallbacks(raceTimeout);
+        handler.removeCallbacks(upgradeAttempt);
+        handler.removeCallbacks(upgradeGiveUp);
         
         webSocketService.stopPingService();
+        httpHeartbeat.stop();
+        longPoll.stop();
+        sse.stop();
         
         if (executor != null && !executor.isShutdown()) {
             executor.shutdownNow();
         }
     }
     
-    private void startConnection(ConnectionMode mode) {
+    private synchronized void startConnection(ConnectionMode mode) {
+        if (!state.isActive()) {
+            // Stopped in the meantime
+            return;
+        }
+        state.moveTo(State.CONNECTING, "mode " + mode);
         currentMode = mode;
+        awaitingFirstSuccess = true;
+        outcomePending = true;
         Log.d(TAG, "Starting connection in mode: " + mode);
+        if (mode != ConnectionMode.HTTP_PING && mode != ConnectionMode.SSE) {
+            httpHeartbeat.stop();
+        }
+        if (mode != ConnectionMode.SSE) {
+            sse.stop();
+        }
+        if (mode != ConnectionMode.LONG_POLLING) {
+            longPoll.stop();
+        }
+        if (mode != ConnectionMode.WEBSOCKET) {
+            // Only one transport at a time, or its reconnects would fight the new mode
+            webSocketService.stopPingService();
+            endRace();
+            upgradeProbe = false;
+            handler.removeCallbacks(upgradeGiveUp);
+            handler.removeCallbacks(upgradeAttempt);
+            handler.postDelayed(upgradeAttempt, UPGRADE_INTERVAL);
+        } else {
+            upgradeProbe = false;
+            handler.removeCallbacks(upgradeGiveUp);
+            handler.removeCallbacks(upgradeAttempt);
+        }
         
         switch (mode) {
             case WEBSOCKET:
                 webSocketService.stopPingService();
                 webSocketService.startPingService();
+                beginRace();
+                break;
+                
+            case SSE:
+                streamOpen = false;
+                streamFailures.set(0);
+                lastStreamActivity = System.currentTimeMillis();
+                sse.start();
+                // The stream is downstream only, liveness still goes up as HTTP pings
+                startHttpPing();
                 break;
                 
             case LONG_POLLING:
@@ -121,39 +312,181 @@ public class UniversalConnectionService {
         }
     }
     
+    // Opening a WebSocket can take several round trips or hang on a hostile
+    // network, so an HTTP health check runs alongside it. Whichever answers
+    // first marks the device connected; once the WebSocket opens the HTTP
+    // pings stop. If HTTP got through but the WebSocket has not opened within
+    // the window, the network is blocking it and the ladder moves on now
+    // rather than after three stale monitor checks.
+    private void beginRace() {
+        racing = true;
+        httpWonRace = false;
+        raceStartedAt = System.currentTimeMillis();
+        handler.removeCallbacks(raceTimeout);
+        handler.postDelayed(raceTimeout, RACE_WINDOW);
+        httpHeartbeat.start();
+    }
+    
+    private void endRace() {
+        racing = false;
+        handler.removeCallbacks(raceTimeout);
+    }
+    
+    private synchronized void onRaceTimeout() {
+        if (!racing || !state.isActive() || currentMode != ConnectionMode.WEBSOCKET) {
+            return;
+        }
+        endRace();
+        if (httpWonRace) {
+            Log.w(TAG, "WebSocket did not open within " + RACE_WINDOW + "ms but HTTP works, falling back");
+            preferences.recordFailure(networkKey, ConnectionMode.WEBSOCKET.name());
+            startConnection(ConnectionMode.SSE);
+        } else {
+            // Nothing gets through, leave it to the WebSocket backoff and the monitor
+            Log.w(TAG, "Neither transport connected within " + RACE_WINDOW + "ms");
+            httpHeartbeat.stop();
+        }
+    }
+    
+    // Tries the WebSocket next to the running fallback, which stays up until it opens
+    private synchronized void attemptUpgrade() {
+        if (!state.isActive() || currentMode == ConnectionMode.WEBSOCKET) {
+            return;
+        }
+        Log.d(TAG, "Trying to upgrade from " + currentMode + " to WebSocket");
+        upgradeProbe = true;
+        webSocketService.startPingService();
+        handler.postDelayed(upgradeGiveUp, RACE_WINDOW);
+    }
+    
+    private synchronized void giveUpUpgrade() {
+        if (!upgradeProbe || currentMode == ConnectionMode.WEBSOCKET) {
+            return;
+        }
+        Log.d(TAG, "WebSocket still unavailable, staying on " + currentMode);
+        upgradeProbe = false;
+        webSocketService.stopPingService();
+        handler.postDelayed(upgradeAttempt, UPGRADE_INTERVAL);
+    }
+    
+    // Called by DevicePingService when its socket opens
+    public void notifyWebSocketOpened() {
+        handler.post(this::onWebSocketOpened);
+        notifyConnectionOpened();
+    }
+    
+    private synchronized void onWebSocketOpened() {
+        if (!state.isActive()) {
+            return;
+        }
+        if (currentMode != ConnectionMode.WEBSOCKET) {
+            if (!upgradeProbe) {
+                return;
+            }
+            Log.d(TAG, "Upgraded from " + currentMode + " to WebSocket");
+            upgradeProbe = false;
+            handler.removeCallbacks(upgradeGiveUp);
+            currentMode = ConnectionMode.WEBSOCKET;
+            outcomePending = true;
+            failureCount.set(0);
+            sse.stop();
+            longPoll.stop();
+            httpHeartbeat.stop();
+        } else if (racing) {
+            Log.d(TAG, "WebSocket open after " + (System.currentTimeMillis() - raceStartedAt)
+                    + "ms" + (httpWonRace ? ", HTTP answered first" : ""));
+            endRace();
+            httpHeartbeat.stop();
+        }
+    }
+    
+    // Called by DevicePingService when the socket is considered dead
+    public void notifyWebSocketFailure() {
+        if (currentMode == ConnectionMode.WEBSOCKET) {
+            notifyConnectionFailure();
+        }
+    }
+    
     private void startConnectionMonitor() {
-        handler.postDelayed(new Runnable() {
+        if (connectionMonitor != null) {
+            handler.removeCallbacks(connectionMonitor);
+        }
+        connectionMonitor = new Runnable() {
             @Override
             public void run() {
-                if (!isRunning) return;
+                if (!state.isActive() || connectionMonitor != this) return;
                 
-                long timeSinceLastPing = System.currentTimeMillis() - lastSuccessfulPing;
+                long lastAlive = lastSuccessfulPing;
+                if (currentMode == ConnectionMode.SSE) {
+                    // An open stream fails on its own within the read timeout once bytes stop
+                    lastAlive = streamOpen ? System.currentTimeMillis() : lastStreamActivity;
+                }
+                long timeSinceLastPing = System.currentTimeMillis() - lastAlive;
                 
-                // If no successful ping in 10 seconds, switch mode
-                if (timeSinceLastPing > 10000 && lastSuccessfulPing > 0) {
+                // If no successful ping in three heartbeats (at least 10 seconds), switch mode
+                long staleAfter = Math.max(10000, 3 * heartbeatPolicy.currentInterval())
+                        + (long) (devicePhase * MONITOR_SPREAD);
+                boolean heldOff = System.currentTimeMillis() < httpPingNotBefore;
+                if (timeSinceLastPing > staleAfter && lastAlive > 0 && !heldOff) {
                     Log.w(TAG, "No successful ping for " + timeSinceLastPing + "ms, switching mode");
-                    failureCount++;
+                    state.moveTo(State.DEGRADED, "stale for " + timeSinceLastPing + "ms");
+                    failureCount.incrementAndGet();
                     switchConnectionMode();
                 }
                 
                 // Continue monitoring
-                handler.postDelayed(this, 5000);
+                handler.postDelayed(this, MONITOR_PERIOD);
             }
-        }, 5000);
+        };
+        // Phase-shifted so devices started together do not check on the same tick
+        handler.postDelayed(connectionMonitor, MONITOR_PERIOD + (long) (devicePhase * MONITOR_PERIOD));
+    }
+    
+    private ConnectionMode preferredMode() {
+        String preferred = preferences.preferredMode(networkKey);
+        if (preferred != null) {
+            try {
+                Log.d(TAG, "Network " + networkKey + " prefers " + preferred);
+                return ConnectionMode.valueOf(preferred);
+            } catch (IllegalArgumentException e) {
+                // A mode from an older build
+            }
+        }
+        return ConnectionMode.WEBSOCKET;
+    }
+    
+    private synchronized void onNetworkSwitched(Network network) {
+        if (!state.isActive()) {
+            return;
+        }
+        networkKey = TransportPreferenceStore.networkKey(context, network);
+        ConnectionMode preferred = preferredMode();
+        if (preferred != currentMode) {
+            failureCount.set(0);
+            startConnection(preferred);
+        } else {
+            restartTransport("network changed");
+        }
     }
     
     private void switchConnectionMode() {
+        preferences.recordFailure(networkKey, currentMode.name());
         switch (currentMode) {
             case WEBSOCKET:
-                if (failureCount < 3) {
+                if (failureCount.get() < 3) {
                     // Try WebSocket again
                     startConnection(ConnectionMode.WEBSOCKET);
                 } else {
-                    // Switch to long-polling
-                    startConnection(ConnectionMode.LONG_POLLING);
+                    // Switch to server-sent events
+                    startConnection(ConnectionMode.SSE);
                 }
                 break;
                 
+            case SSE:
+                // Switch to long-polling
+                startConnection(ConnectionMode.LONG_POLLING);
+                break;
+                
             case LONG_POLLING:
                 // Switch to HTTP ping
                 startConnection(ConnectionMode.HTTP_PING);
@@ -161,88 +494,74 @@ public class UniversalConnectionService {
                 
             case HTTP_PING:
                 // Reset and try WebSocket again
-                failureCount = 0;
+                failureCount.set(0);
                 startConnection(ConnectionMode.WEBSOCKET);
                 break;
         }
     }
     
     private void startLongPolling() {
-        executor.execute(() -> {
-            while (isRunning && currentMode == ConnectionMode.LONG_POLLING) {
-                try {
-                    String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
-                    if (deviceToken == null) break;
-                    
-                    String baseUrl = ru.chasepay.mobile.BuildConfig.BASE_URL;
-                    String pollUrl = baseUrl.replace("/api", "") + "/api/device/long-poll";
-                    
-                    JSONObject data = new JSONObject();
-                    data.put("batteryLevel", DeviceUtils.getBatteryLevel(context));
-                    data.put("networkSpeed", DeviceUtils.getNetworkSpeed(context));
-                    data.put("timestamp", System.currentTimeMillis());
-                    
-                    RequestBody body = RequestBody.create(
-                        MediaType.parse("application/json"),
-                        data.toString()
-                    );
-                    
-                    Request request = new Request.Builder()
-                            .url(pollUrl)
-                            .post(body)
-                            .addHeader("x-device-token", deviceToken)
-                            .build();
-                    
-                    try (Response response = httpClient.newCall(request).execute()) {
-                        if (response.isSuccessful()) {
-                            lastSuccessfulPing = System.currentTimeMillis();
-                            failureCount = 0;
-                            
-                            String responseBody = response.body().string();
-                            JSONObject result = new JSONObject(responseBody);
-                            
-                            Log.d(TAG, "Long-poll response: " + result.getString("status"));
-                            
-                            // Handle any commands from server
-                            if (result.has("command")) {
-                                handleServerCommand(result.getString("command"), result.optJSONObject("data"));
-                            }
-                        } else {
-                            Log.e(TAG, "Long-poll failed: " + response.code());
-                            failureCount++;
-                        }
-                    }
-                    
-                } catch (Exception e) {
-                    Log.e(TAG, "Long-poll error", e);
-                    failureCount++;
-                    
-                    // Wait before retry
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException ie) {
-                        break;
-                    }
-                }
-            }
-        });
+        longPoll.start();
+    }
+    
+    private void handlePollResponse(JSONObject result) {
+        if (!state.isActive() || currentMode != ConnectionMode.LONG_POLLING) {
+            return;
+        }
+        notifySuccessfulConnection();
+        confirmTransport(ConnectionMode.LONG_POLLING);
+        heartbeatPolicy.recordSuccess();
+        heartbeatPolicy.applyServerHints(result);
+        
+        Log.d(TAG, "Long-poll response: " + result.optString("status"));
+        
+        // Handle any commands from server
+        if (result.has("command")) {
+            handleServerCommand(result.optString("requestId", null),
+                    result.optString("command"), result.optJSONObject("data"));
+        }
+    }
+    
+    private void handleStreamEvent(String type, JSONObject data) {
+        if (!state.isActive() || currentMode != ConnectionMode.SSE) {
+            return;
+        }
+        notifySuccessfulConnection();
+        heartbeatPolicy.applyServerHints(data);
+        
+        if ("command".equals(type)) {
+            handleServerCommand(data.optString("requestId", null),
+                    data.optString("command"), data.optJSONObject("data"));
+        }
+    }
+    
+    // The stream was up until now; one that outlived its read timeout or
+    // delivered an event worked, so earlier failures no longer count
+    private void onStreamEnded() {
+        if (!streamOpen) {
+            return;
+        }
+        streamOpen = false;
+        long now = System.currentTimeMillis();
+        lastStreamActivity = now;
+        if (streamCarriedData || now - streamOpenedAt > STREAM_PROVEN_AFTER) {
+            streamFailures.set(0);
+        }
     }
     
     private void startHttpPing() {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!isRunning || currentMode != ConnectionMode.HTTP_PING) return;
-                
-                sendHttpPing();
-                
-                // Schedule next ping
-                handler.postDelayed(this, 3000);
-            }
-        });
+        httpHeartbeat.start();
     }
     
     private void sendHttpPing() {
+        if (!state.isActive() || (!racing && currentMode != ConnectionMode.HTTP_PING && currentMode != ConnectionMode.SSE)) {
+            httpHeartbeat.stop();
+            return;
+        }
+        if (System.currentTimeMillis() < httpPingNotBefore) {
+            Log.d(TAG, "HTTP ping held off by server");
+            return;
+        }
         executor.execute(() -> {
             try {
                 String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
@@ -266,36 +585,208 @@ public class UniversalConnectionService {
                         .addHeader("x-device-token", deviceToken)
                         .build();
                 
+                long sentAt = System.currentTimeMillis();
                 try (Response response = httpClient.newCall(request).execute()) {
                     if (response.isSuccessful()) {
-                        lastSuccessfulPing = System.currentTimeMillis();
-                        failureCount = 0;
+                        notifyRtt(System.currentTimeMillis() - sentAt);
+                        if (racing && !httpWonRace) {
+                            httpWonRace = true;
+                            Log.d(TAG, "HTTP answered before the WebSocket opened");
+                        }
+                        heartbeatPolicy.recordSuccess();
+                        applyHeartbeatHints(response);
+                        notifySuccessfulConnection();
+                        if (currentMode == ConnectionMode.HTTP_PING) {
+                            // Alongside a race or an event stream it proves nothing about that transport
+                            confirmTransport(ConnectionMode.HTTP_PING);
+                        }
                         Log.d(TAG, "HTTP ping successful");
                     } else {
                         Log.e(TAG, "HTTP ping failed: " + response.code());
-                        failureCount++;
+                        long retryAfter = ReconnectPolicy.retryAfterMs(response);
+                        if (retryAfter >= 0) {
+                            httpPingNotBefore = System.currentTimeMillis() + retryAfter
+                                    + (long) (devicePhase * MONITOR_PERIOD);
+                        }
+                        heartbeatPolicy.recordFailure();
+                        onTransportError("http ping " + response.code());
                     }
                 }
                 
             } catch (Exception e) {
                 Log.e(TAG, "HTTP ping error", e);
-                failureCount++;
+                heartbeatPolicy.recordFailure();
+                onTransportError("http ping error");
             }
         });
     }
     
-    private void handleServerCommand(String command, JSONObject data) {
+    private void applyHeartbeatHints(Response response) {
+        try {
+            if (response.body() != null) {
+                heartbeatPolicy.applyServerHints(new JSONObject(response.body().string()));
+            }
+        } catch (Exception e) {
+            // Older servers answer without a JSON body
+        }
+    }
+    
+    private void handleServerCommand(String requestId, String command, JSONObject data) {
         Log.d(TAG, "Received server command: " + command);
-        // Handle commands from server (future implementation)
+        CommandDispatcher.getInstance(context).dispatch(requestId, command, data, this::sendCommandResult);
+    }
+    
+    // Sent asynchronously so a slow result upload never holds up the caller
+    private void sendCommandResult(JSONObject result) {
+        String deviceToken = prefs.getString(KEY_DEVICE_TOKEN, null);
+        if (deviceToken == null) return;
+        
+        String baseUrl = ru.chasepay.mobile.BuildConfig.BASE_URL;
+        String resultUrl = baseUrl.replace("/api", "") + "/api/device/command-result";
+        
+        Request request = new Request.Builder()
+                .url(resultUrl)
+                .post(RequestBody.create(MediaType.parse("application/json"), result.toString()))
+                .addHeader("x-device-token", deviceToken)
+                .build();
+        
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.e(TAG, "Failed to send command result", e);
+            }
+            
+            @Override
+            public void onResponse(Call call, Response response) {
+                if (!response.isSuccessful()) {
+                    Log.w(TAG, "Command result rejected: " + response.code());
+                }
+                response.close();
+            }
+        });
+    }
+    
+    // Tears down the current transport and starts it again after the delay
+    public void reconnect(long delayMs) {
+        handler.postDelayed(() -> restartTransport("requested"), delayMs);
+    }
+    
+    // Drops the active transport's connection and opens a new one straight
+    // away, skipping any backoff it was in
+    private synchronized void restartTransport(String reason) {
+        if (!state.isActive()) {
+            return;
+        }
+        Log.d(TAG, "Restarting " + currentMode + " transport: " + reason);
+        failureCount.set(0);
+        switch (currentMode) {
+            case WEBSOCKET:
+                state.moveTo(State.CONNECTING, reason);
+                webSocketService.reconnectNow();
+                beginRace();
+                break;
+                
+            case SSE:
+                sse.stop();
+                startConnection(ConnectionMode.SSE);
+                break;
+                
+            case LONG_POLLING:
+                longPoll.stop();
+                startConnection(ConnectionMode.LONG_POLLING);
+                break;
+                
+            case HTTP_PING:
+                startConnection(ConnectionMode.HTTP_PING);
+                httpHeartbeat.probeNow();
+                break;
+        }
+    }
+    
+    // A single failed exchange, the connection monitor decides whether to switch modes
+    private void onTransportError(String reason) {
+        failureCount.incrementAndGet();
+        state.transition(State.CONNECTED, State.DEGRADED, reason);
     }
     
     public void notifySuccessfulConnection() {
         lastSuccessfulPing = System.currentTimeMillis();
-        failureCount = 0;
+        failureCount.set(0);
+        state.moveTo(State.CONNECTED, currentMode.name());
+        if (awaitingFirstSuccess) {
+            awaitingFirstSuccess = false;
+            NotificationUploader.getInstance(context).onReconnected();
+        } else {
+            NotificationUploader.getInstance(context).onConnectivityRestored();
+        }
+    }
+    
+    // Called by DevicePingService on auth_ok and pongs, a bare socket open is not enough
+    public void notifyWebSocketConfirmed() {
+        confirmTransport(ConnectionMode.WEBSOCKET);
+    }
+    
+    // Only the transport's own answer (auth_ok or pong, stream open, poll
+    // response) counts towards what works on this network. During a race the
+    // HTTP health check never does, only the socket's own confirmation.
+    private void confirmTransport(ConnectionMode mode) {
+        if (mode != currentMode || !outcomePending) {
+            return;
+        }
+        outcomePending = false;
+        preferences.recordSuccess(networkKey, mode.name());
+    }
+    
+    // Called by a transport that detected a dead connection on its own,
+    // counts like a failed ping and moves on to the next mode if needed
+    public void notifyConnectionFailure() {
+        handler.post(() -> {
+            if (!state.isActive()) {
+                return;
+            }
+            failureCount.incrementAndGet();
+            switchConnectionMode();
+        });
+    }
+    
+    // Round trip measured by the active transport, kept per network and mode
+    public void notifyRtt(long rttMs) {
+        ClockSync.getInstance(context).recordRtt(rttMs);
+        if (!racing && !upgradeProbe) {
+            preferences.recordRtt(networkKey, currentMode.name(), rttMs);
+        }
+    }
+    
+    // Called by a transport that is waiting before its next reconnect attempt
+    public void notifyBackingOff(long delayMs) {
+        if (currentMode != ConnectionMode.WEBSOCKET) {
+            // An upgrade attempt failing, the fallback is still up
+            return;
+        }
+        state.moveTo(State.BACKING_OFF, "retry in " + delayMs + "ms");
+    }
+    
+    // Called by a transport that has just (re)opened its connection
+    public void notifyConnectionOpened() {
+        awaitingFirstSuccess = true;
+        outcomePending = true;
+        notifySuccessfulConnection();
     }
     
     public boolean isRunning() {
-        return isRunning;
+        return state.isActive();
+    }
+    
+    public ConnectionStateMachine.Snapshot getStateSnapshot() {
+        return state.snapshot();
+    }
+    
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        state.addListener(listener);
+    }
+    
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        state.removeListener(listener);
     }
     
     public String getCurrentMode() {
@@ -0,0 +1,106 @@
+package ru.chasepay.mobile.utils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Application labels by package name. Looking a label up costs two Binder
+// calls into system_server, so results are kept in an LRU and only dropped
+// when the package is installed, updated or removed.
+public class AppLabelCache {
+    private static final String TAG = "AppLabelCache";
+    private static final int MAX_ENTRIES = 64;
+    
+    private final PackageManager packageManager;
+    private final Map<String, String> labels = new LinkedHashMap<String, String>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    private static AppLabelCache instance;
+    
+    public static synchronized AppLabelCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AppLabelCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+    
+    private AppLabelCache(Context context) {
+        this.packageManager = context.getPackageManager();
+        registerPackageReceiver(context);
+    }
+    
+    public String getLabel(String packageName) {
+        synchronized (labels) {
+            String label = labels.get(packageName);
+            if (label != null) {
+                return label;
+            }
+        }
+        
+        String label = loadLabel(packageName);
+        synchronized (labels) {
+            labels.put(packageName, label);
+        }
+        return label;
+    }
+    
+    public void invalidate(String packageName) {
+        synchronized (labels) {
+            labels.remove(packageName);
+        }
+    }
+    
+    private String loadLabel(String packageName) {
+        try {
+            return packageManager
+                .getApplicationLabel(packageManager.getApplicationInfo(packageName, 0))
+                .toString();
+        } catch (Exception e) {
+            // Cached as well, so an unknown package does not cost an IPC every time
+            Log.w(TAG, "Failed to get app name for: " + packageName);
+            return packageName;
+        }
+    }
+    
+    private void registerPackageReceiver(Context context) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data != null) {
+                    Log.d(TAG, "Package changed, dropping cached label: " + data.getSchemeSpecificPart());
+                    invalidate(data.getSchemeSpecificPart());
+                }
+            }
+        };
+        
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                context.registerReceiver(receiver, filter, Context.RECEIVER_NOT_EXPORTED);
+            } else {
+                context.registerReceiver(receiver, filter);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to register package receiver, cached labels will not be refreshed", e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,106 @@
+package ru.chasepay.mobile.utils;
+
+import java.util.Arrays;
+
+// Fixed-size latency histogram in the HDR style: every power-of-two range of
+// milliseconds is split into 32 linear sub-buckets, so a bucket is at most
+// 1/32 of its values wide and percentiles are within about 3%. Values below
+// 32 ms are exact, the last bucket holds everything from ~17 minutes up.
+// Percentiles are reported as the bucket's upper bound.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^MAX_EXPONENT ms up share the overflow bucket
+    private static final int MAX_EXPONENT = 20;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS + 1;
+    
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+    
+    public synchronized void record(long latencyMs) {
+        if (latencyMs < 0) {
+            // Clock went backwards between stamps, nothing meaningful to record
+            return;
+        }
+        counts[bucketFor(latencyMs)]++;
+        count++;
+        sum += latencyMs;
+        max = Math.max(max, latencyMs);
+    }
+    
+    public synchronized void merge(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+    }
+    
+    // Returns a copy and clears this histogram
+    public synchronized LatencyHistogram drain() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.merge(this);
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+        return copy;
+    }
+    
+    public synchronized long getCount() {
+        return count;
+    }
+    
+    public synchronized long getMax() {
+        return max;
+    }
+    
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+    
+    // p in [0, 1]
+    public synchronized long getPercentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(rank, 1)) {
+                return i == BUCKETS - 1 ? max : Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+    
+    private static int bucketFor(long latencyMs) {
+        if (latencyMs < SUB_BUCKETS) {
+            return (int) latencyMs;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(latencyMs);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        // The top SUB_BUCKET_BITS + 1 bits, the leading one dropped
+        int subBucket = (int) (latencyMs >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+    
+    // Largest value that lands in the bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
\ No newline at end of file
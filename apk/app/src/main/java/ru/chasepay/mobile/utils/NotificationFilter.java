@@ -0,0 +1,200 @@
+package ru.chasepay.mobile.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Decides whether a notification is worth sending to the server. Package names
+// are matched against a prefix trie and title/content against an Aho-Corasick
+// automaton over case-folded keywords, so each check is a single pass over the
+// input with no allocation, however many banks and keywords are configured.
+public class NotificationFilter {
+
+    // Banking app package prefixes
+    public static final String[] BANK_PACKAGES = {
+        "com.sberbank",
+        "ru.sberbankmobile",
+        "com.idamob.tinkoff",
+        "ru.tinkoff",
+        "ru.alfabank",
+        "ru.vtb24",
+        "com.rbs",
+        "ru.rosbank",
+        "ru.raiffeisen",
+        "com.openbank",
+        "ru.psbank"
+    };
+
+    // Transaction keywords, matched case-insensitively anywhere in title or content
+    public static final String[] TRANSACTION_KEYWORDS = {
+        "перевод", "поступление", "списание", "оплата",
+        "payment", "transfer", "transaction", "руб", "rub"
+    };
+
+    private static NotificationFilter defaultFilter;
+
+    private final CharTrie packageTrie;
+    private final CharTrie keywordTrie;
+    // Aho-Corasick failure links and "some keyword ends here" flags, per keyword trie node
+    private final int[] fail;
+    private final boolean[] output;
+
+    public static synchronized NotificationFilter getDefault() {
+        if (defaultFilter == null) {
+            defaultFilter = new NotificationFilter(BANK_PACKAGES, TRANSACTION_KEYWORDS);
+        }
+        return defaultFilter;
+    }
+
+    public NotificationFilter(String[] packagePrefixes, String[] keywords) {
+        this.packageTrie = CharTrie.compile(packagePrefixes);
+        this.keywordTrie = CharTrie.compile(keywords);
+        this.fail = new int[keywordTrie.size()];
+        this.output = keywordTrie.terminal.clone();
+        buildFailureLinks();
+    }
+
+    public boolean isRelevant(CharSequence packageName, CharSequence title, CharSequence content) {
+        return isBankPackage(packageName) || hasTransactionKeyword(title, content);
+    }
+
+    public boolean isBankPackage(CharSequence packageName) {
+        if (packageName == null) {
+            return false;
+        }
+        int node = 0;
+        for (int i = 0; i < packageName.length(); i++) {
+            if (packageTrie.terminal[node]) {
+                return true;
+            }
+            node = packageTrie.child(node, fold(packageName.charAt(i)));
+            if (node < 0) {
+                return false;
+            }
+        }
+        return packageTrie.terminal[node];
+    }
+
+    public boolean hasTransactionKeyword(CharSequence title, CharSequence content) {
+        // Title and content are scanned separately, a keyword never spans both
+        return containsKeyword(title) || containsKeyword(content);
+    }
+
+    private boolean containsKeyword(CharSequence text) {
+        if (text == null) {
+            return false;
+        }
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            int next = keywordTrie.child(state, c);
+            while (next < 0 && state != 0) {
+                state = fail[state];
+                next = keywordTrie.child(state, c);
+            }
+            state = next < 0 ? 0 : next;
+            if (output[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void buildFailureLinks() {
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : keywordTrie.targets[0]) {
+            fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            char[] labels = keywordTrie.labels[node];
+            int[] targets = keywordTrie.targets[node];
+            for (int i = 0; i < labels.length; i++) {
+                int child = targets[i];
+                int f = fail[node];
+                int next = keywordTrie.child(f, labels[i]);
+                while (next < 0 && f != 0) {
+                    f = fail[f];
+                    next = keywordTrie.child(f, labels[i]);
+                }
+                fail[child] = next < 0 ? 0 : next;
+                output[child] |= output[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    // Case folding shared with the transaction parser: lower case, and "ё" is
+    // treated as "е" because banks spell it both ways.
+    public static char fold(char c) {
+        char lower = Character.toLowerCase(c);
+        return lower == 'ё' ? 'е' : lower;
+    }
+
+    // Immutable trie with per-node sorted edge labels, looked up by binary search
+    private static class CharTrie {
+        final char[][] labels;
+        final int[][] targets;
+        final boolean[] terminal;
+
+        private CharTrie(char[][] labels, int[][] targets, boolean[] terminal) {
+            this.labels = labels;
+            this.targets = targets;
+            this.terminal = terminal;
+        }
+
+        static CharTrie compile(String[] words) {
+            List<TreeMap<Character, Integer>> edges = new ArrayList<>();
+            List<Boolean> ends = new ArrayList<>();
+            edges.add(new TreeMap<>());
+            ends.add(false);
+
+            for (String word : words) {
+                int node = 0;
+                for (int i = 0; i < word.length(); i++) {
+                    char c = fold(word.charAt(i));
+                    Integer next = edges.get(node).get(c);
+                    if (next == null) {
+                        next = edges.size();
+                        edges.add(new TreeMap<>());
+                        ends.add(false);
+                        edges.get(node).put(c, next);
+                    }
+                    node = next;
+                }
+                ends.set(node, true);
+            }
+
+            int size = edges.size();
+            char[][] labels = new char[size][];
+            int[][] targets = new int[size][];
+            boolean[] terminal = new boolean[size];
+            for (int node = 0; node < size; node++) {
+                TreeMap<Character, Integer> nodeEdges = edges.get(node);
+                labels[node] = new char[nodeEdges.size()];
+                targets[node] = new int[nodeEdges.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> edge : nodeEdges.entrySet()) {
+                    labels[node][i] = edge.getKey();
+                    targets[node][i] = edge.getValue();
+                    i++;
+                }
+                terminal[node] = ends.get(node);
+            }
+            return new CharTrie(labels, targets, terminal);
+        }
+
+        int size() {
+            return terminal.length;
+        }
+
+        int child(int node, char c) {
+            int index = Arrays.binarySearch(labels[node], c);
+            return index < 0 ? -1 : targets[node][index];
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,416 @@
+package ru.chasepay.mobile.utils;
+
+import ru.chasepay.mobile.models.ParsedTransaction;
+
+// Extracts amount, currency, direction, card suffix, balance and counterparty
+// from bank notification text. Each bank has a template with its own marker
+// words; numbers and currencies are read by a hand-written scanner working on
+// the original CharSequence, so parsing needs no regex and almost no garbage.
+public class TransactionParser {
+    public static final String DIRECTION_INCOMING = "incoming";
+    public static final String DIRECTION_OUTGOING = "outgoing";
+
+    private static final String[] COMMON_INCOMING = {
+        "поступление", "зачисление", "пополнение", "перевод от", "возврат", "получен"
+    };
+    private static final String[] COMMON_OUTGOING = {
+        "списание", "покупка", "оплата", "перевод на", "снятие", "выдача", "отправлен"
+    };
+
+    // Balance has to appear within this many characters after its marker
+    private static final int BALANCE_MARKER_REACH = 24;
+    private static final int MAX_AMOUNT_DIGITS = 15;
+    private static final int MAX_COUNTERPARTY_LENGTH = 64;
+
+    private static final BankTemplate[] TEMPLATES = {
+        new BankTemplate("sber", new String[] { "ru.sberbankmobile", "com.sberbank" },
+            new String[] { "перевод из" }, new String[0],
+            new String[] { "баланс" }),
+        new BankTemplate("tinkoff", new String[] { "com.idamob.tinkoff", "ru.tinkoff" },
+            new String[0], new String[] { "перевод по номеру" },
+            new String[] { "доступно", "баланс" }),
+        new BankTemplate("alfa", new String[] { "ru.alfabank" },
+            new String[0], new String[0],
+            new String[] { "остаток", "доступно" }),
+        new BankTemplate("vtb", new String[] { "ru.vtb24" },
+            new String[0], new String[0],
+            new String[] { "баланс", "доступно" }),
+        new BankTemplate("rsb", new String[] { "com.rbs" },
+            new String[0], new String[0],
+            new String[] { "доступно", "баланс" }),
+        new BankTemplate("rosbank", new String[] { "ru.rosbank" },
+            new String[0], new String[0],
+            new String[] { "остаток", "баланс" }),
+        new BankTemplate("raiffeisen", new String[] { "ru.raiffeisen" },
+            new String[0], new String[0],
+            new String[] { "остаток", "доступно" }),
+        new BankTemplate("otkritie", new String[] { "com.openbank" },
+            new String[0], new String[0],
+            new String[] { "доступно", "баланс" }),
+        new BankTemplate("psb", new String[] { "ru.psbank" },
+            new String[0], new String[0],
+            new String[] { "баланс", "остаток" })
+    };
+
+    // Used for unknown packages, e.g. bank SMS shown by a messaging app
+    private static final BankTemplate GENERIC = new BankTemplate(null, new String[0],
+        new String[0], new String[0], new String[] { "баланс", "доступно", "остаток" });
+
+    // Returns null when neither an amount nor a balance was found
+    public static ParsedTransaction parse(String packageName, CharSequence title, CharSequence content) {
+        BankTemplate template = templateFor(packageName);
+        ParsedTransaction result = new ParsedTransaction();
+        result.bank = template.bank;
+
+        scanText(title, template, result);
+        scanText(content, template, result);
+
+        if (result.amount == null && result.balance == null) {
+            return null;
+        }
+        return result;
+    }
+
+    private static BankTemplate templateFor(String packageName) {
+        if (packageName != null) {
+            for (BankTemplate template : TEMPLATES) {
+                for (String prefix : template.packages) {
+                    if (packageName.startsWith(prefix)) {
+                        return template;
+                    }
+                }
+            }
+        }
+        return GENERIC;
+    }
+
+    private static void scanText(CharSequence text, BankTemplate template, ParsedTransaction out) {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+
+        if (out.direction == null) {
+            out.direction = detectDirection(text, template);
+            if (DIRECTION_INCOMING.equals(out.direction) && out.counterparty == null) {
+                out.counterparty = findCounterparty(text, template);
+            }
+        }
+
+        int balanceEnd = indexAfterAny(text, template.balance);
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            if (!isDigit(text.charAt(i))) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            long value = 0;
+            int digits = 0;
+            int j = i;
+            while (j < n && isDigit(text.charAt(j))) {
+                value = value * 10 + (text.charAt(j) - '0');
+                digits++;
+                j++;
+            }
+            int firstGroup = digits;
+
+            // Thousands groups: a separator followed by exactly three digits
+            boolean grouped = false;
+            while (firstGroup <= 3 && j + 3 < n && isGroupSeparator(text.charAt(j))
+                    && isDigit(text.charAt(j + 1)) && isDigit(text.charAt(j + 2)) && isDigit(text.charAt(j + 3))
+                    && (j + 4 == n || !isDigit(text.charAt(j + 4)))) {
+                for (int k = j + 1; k <= j + 3; k++) {
+                    value = value * 10 + (text.charAt(k) - '0');
+                }
+                digits += 3;
+                j += 4;
+                grouped = true;
+            }
+
+            // Decimal part of one or two digits
+            int fraction = 0;
+            boolean hasFraction = false;
+            if (j + 1 < n && (text.charAt(j) == '.' || text.charAt(j) == ',') && isDigit(text.charAt(j + 1))) {
+                int k = j + 1;
+                while (k < n && isDigit(text.charAt(k))) {
+                    k++;
+                }
+                int fractionDigits = k - j - 1;
+                if (fractionDigits <= 2) {
+                    fraction = text.charAt(j + 1) - '0';
+                    fraction = fractionDigits == 2 ? fraction * 10 + (text.charAt(j + 2) - '0') : fraction * 10;
+                    hasFraction = true;
+                    j = k;
+                }
+            }
+
+            i = j;
+            if (digits > MAX_AMOUNT_DIGITS) {
+                continue;
+            }
+
+            // "*1234", "ECMC1234", "MIR-1234" and the like mark the card or account
+            if (firstGroup == 4 && !grouped && !hasFraction && isCardPrefix(text, start)) {
+                if (out.cardSuffix == null) {
+                    out.cardSuffix = text.subSequence(start, start + 4).toString();
+                }
+                continue;
+            }
+
+            String currency = currencyAfter(text, j);
+            if (currency == null) {
+                currency = currencyBefore(text, start);
+            }
+            if (currency == null) {
+                // Times, dates and reference numbers carry no currency
+                continue;
+            }
+
+            long minor = value * 100 + fraction;
+            boolean isBalance = balanceEnd >= 0 && start >= balanceEnd && start - balanceEnd <= BALANCE_MARKER_REACH;
+            if (isBalance) {
+                if (out.balance == null) {
+                    out.balance = minor;
+                }
+            } else if (out.amount == null) {
+                out.amount = minor;
+                out.currency = currency;
+            }
+        }
+    }
+
+    private static String detectDirection(CharSequence text, BankTemplate template) {
+        int incoming = indexOfAny(text, template.incoming);
+        int outgoing = indexOfAny(text, template.outgoing);
+        if (incoming >= 0 && (outgoing < 0 || incoming < outgoing)) {
+            return DIRECTION_INCOMING;
+        }
+        if (outgoing >= 0) {
+            return DIRECTION_OUTGOING;
+        }
+        // "Перевод 500р от Иван И." names the sender without a fixed phrase
+        if (indexOfFolded(text, "перевод", 0) >= 0) {
+            return indexOfWord(text, "от") >= 0 ? DIRECTION_INCOMING : DIRECTION_OUTGOING;
+        }
+        return null;
+    }
+
+    private static String findCounterparty(CharSequence text, BankTemplate template) {
+        int from = indexOfWord(text, "от");
+        if (from < 0) {
+            return null;
+        }
+        int start = from + 2;
+        int n = text.length();
+        while (start < n && isSpace(text.charAt(start))) {
+            start++;
+        }
+
+        int end = start;
+        while (end < n && end - start < MAX_COUNTERPARTY_LENGTH) {
+            char c = text.charAt(end);
+            if (c == '\n' || c == ',' || c == ';' || isDigit(c) || startsWithAny(text, end, template.balance)) {
+                break;
+            }
+            end++;
+        }
+        while (end > start && (isSpace(text.charAt(end - 1)) || text.charAt(end - 1) == ':')) {
+            end--;
+        }
+        // "от *1234" names a card, not a person
+        for (int k = start; k < end; k++) {
+            if (Character.isLetter(text.charAt(k))) {
+                return text.subSequence(start, end).toString();
+            }
+        }
+        return null;
+    }
+
+    private static String currencyAfter(CharSequence text, int index) {
+        int n = text.length();
+        while (index < n && isSpace(text.charAt(index))) {
+            index++;
+        }
+        if (index >= n) {
+            return null;
+        }
+
+        char c = text.charAt(index);
+        switch (c) {
+            case '₽':
+                return "RUB";
+            case '$':
+                return "USD";
+            case '€':
+                return "EUR";
+            case '¥':
+                return "CNY";
+        }
+        if (regionMatchesFolded(text, index, "руб") || regionMatchesFolded(text, index, "rub")
+                || regionMatchesFolded(text, index, "rur")) {
+            return "RUB";
+        }
+        if (regionMatchesFolded(text, index, "usd")) {
+            return "USD";
+        }
+        if (regionMatchesFolded(text, index, "eur")) {
+            return "EUR";
+        }
+        if (regionMatchesFolded(text, index, "cny") || regionMatchesFolded(text, index, "юан")) {
+            return "CNY";
+        }
+        // Short ruble forms "500р", "500 р." and the Latin look-alike "500p"
+        char folded = NotificationFilter.fold(c);
+        if ((folded == 'р' || folded == 'p') && (index + 1 >= n || !Character.isLetter(text.charAt(index + 1)))) {
+            return "RUB";
+        }
+        return null;
+    }
+
+    private static String currencyBefore(CharSequence text, int start) {
+        int index = start - 1;
+        while (index >= 0 && isSpace(text.charAt(index))) {
+            index--;
+        }
+        if (index < 0) {
+            return null;
+        }
+        switch (text.charAt(index)) {
+            case '$':
+                return "USD";
+            case '€':
+                return "EUR";
+            case '₽':
+                return "RUB";
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isCardPrefix(CharSequence text, int start) {
+        if (start == 0) {
+            return false;
+        }
+        char prev = text.charAt(start - 1);
+        if (prev == '*' || prev == '•' || prev == '·') {
+            return true;
+        }
+        if (prev == '-') {
+            return start >= 2 && Character.isLetter(text.charAt(start - 2));
+        }
+        return Character.isLetter(prev);
+    }
+
+    // Earliest match of any marker, or -1
+    private static int indexOfAny(CharSequence text, String[] markers) {
+        int best = -1;
+        for (String marker : markers) {
+            int index = indexOfFolded(text, marker, 0);
+            if (index >= 0 && (best < 0 || index < best)) {
+                best = index;
+            }
+        }
+        return best;
+    }
+
+    // Position right after the earliest matching marker, or -1
+    private static int indexAfterAny(CharSequence text, String[] markers) {
+        int best = -1;
+        int bestEnd = -1;
+        for (String marker : markers) {
+            int index = indexOfFolded(text, marker, 0);
+            if (index >= 0 && (best < 0 || index < best)) {
+                best = index;
+                bestEnd = index + marker.length();
+            }
+        }
+        return bestEnd;
+    }
+
+    private static int indexOfWord(CharSequence text, String word) {
+        int from = 0;
+        while (true) {
+            int index = indexOfFolded(text, word, from);
+            if (index < 0) {
+                return -1;
+            }
+            int end = index + word.length();
+            boolean startsWord = index == 0 || !Character.isLetterOrDigit(text.charAt(index - 1));
+            boolean endsWord = end == text.length() || !Character.isLetterOrDigit(text.charAt(end));
+            if (startsWord && endsWord) {
+                return index;
+            }
+            from = index + 1;
+        }
+    }
+
+    private static boolean startsWithAny(CharSequence text, int index, String[] markers) {
+        for (String marker : markers) {
+            if (regionMatchesFolded(text, index, marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Markers are stored lower case, the text is folded while comparing
+    private static int indexOfFolded(CharSequence text, String marker, int from) {
+        int last = text.length() - marker.length();
+        for (int i = from; i <= last; i++) {
+            if (regionMatchesFolded(text, i, marker)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionMatchesFolded(CharSequence text, int index, String marker) {
+        if (index + marker.length() > text.length()) {
+            return false;
+        }
+        for (int k = 0; k < marker.length(); k++) {
+            if (NotificationFilter.fold(text.charAt(index + k)) != marker.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == ' ' || c == ' ' || c == '\t';
+    }
+
+    private static boolean isGroupSeparator(char c) {
+        return c == ' ' || c == ' ' || c == ' ' || c == '\'';
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static class BankTemplate {
+        final String bank;
+        final String[] packages;
+        final String[] incoming;
+        final String[] outgoing;
+        final String[] balance;
+
+        // Bank specific markers extend the common direction vocabulary
+        BankTemplate(String bank, String[] packages, String[] extraIncoming, String[] extraOutgoing, String[] balance) {
+            this.bank = bank;
+            this.packages = packages;
+            this.incoming = concat(COMMON_INCOMING, extraIncoming);
+            this.outgoing = concat(COMMON_OUTGOING, extraOutgoing);
+            this.balance = balance;
+        }
+    }
+}
\ No newline at end of file
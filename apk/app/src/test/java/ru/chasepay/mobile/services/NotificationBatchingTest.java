@@ -0,0 +1,221 @@
+package ru.chasepay.mobile.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.GzipSource;
+import okio.Okio;
+import ru.chasepay.mobile.api.ApiClient;
+import ru.chasepay.mobile.api.DeviceApi;
+import ru.chasepay.mobile.models.NotificationAckResponse;
+import ru.chasepay.mobile.models.NotificationBatchRequest;
+import ru.chasepay.mobile.models.NotificationRequest;
+
+// Bursts of notifications go through the real uploader, with the app's HTTP
+// client setup, to the batch endpoint of a local server that counts requests
+public class NotificationBatchingTest {
+    private static final String BATCH_PATH = "/api/device/notifications/batch";
+
+    private MockWebServer server;
+    // The first drain also asks for the sequence cursor, only batches are kept
+    private final BlockingQueue<RecordedRequest> batches = new LinkedBlockingQueue<>();
+    private MemoryOutbox outbox;
+    private NotificationUploader uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (BATCH_PATH.equals(request.getPath())) {
+                    batches.add(request);
+                }
+                return new MockResponse().setBody("{\"status\":\"ok\"}");
+            }
+        });
+        server.start();
+
+        DeviceApi api = ApiClient.forBaseUrl(server.url("/api/").toString()).create(DeviceApi.class);
+        TestPreferences prefs = new TestPreferences()
+                .put("device_token", "test-device-token")
+                .put("notification_stream_id", "test-stream");
+        outbox = new MemoryOutbox();
+        uploader = new NotificationUploader(outbox, prefs, api,
+                new DeliveryMetrics(prefs, api), new NoSocket());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void paymentBurstGoesOutInOneRequest() throws Exception {
+        // A bank app posting push, SMS copy and new balance for one payment
+        for (int i = 0; i < 3; i++) {
+            post(NotificationLane.TRANSACTION);
+            Thread.sleep(10);
+        }
+        awaitOutboxEmpty();
+
+        assertEquals(1, batches.size());
+        RecordedRequest request = batches.poll();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        String json = Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+        NotificationBatchRequest batch = new Gson().fromJson(json, NotificationBatchRequest.class);
+        assertEquals(3, batch.notifications.size());
+        assertEquals("test-stream", batch.stream);
+        assertEquals(Long.valueOf(1), batch.notifications.get(0).seq);
+    }
+
+    @Test
+    public void largeBurstNeedsFarFewerRequestsThanNotifications() throws Exception {
+        int notifications = 100;
+        for (int i = 0; i < notifications; i++) {
+            post(NotificationLane.TRANSACTION);
+        }
+        awaitOutboxEmpty();
+
+        // One request per notification before batching; full batches now,
+        // plus at most a partial one where a drain caught the burst midway
+        int requests = batches.size();
+        assertTrue(requests + " requests for " + notifications + " notifications",
+                requests <= notifications / NotificationUploader.BATCH_SIZE + 2);
+        int sent = 0;
+        RecordedRequest request;
+        while ((request = batches.poll()) != null) {
+            assertEquals("gzip", request.getHeader("Content-Encoding"));
+            String json = Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+            sent += new Gson().fromJson(json, NotificationBatchRequest.class).notifications.size();
+        }
+        assertEquals(notifications, sent);
+    }
+
+    @Test
+    public void flushDelayFollowsLaneUntilBatchIsFull() {
+        long transaction = NotificationUploader.flushDelay(NotificationLane.TRANSACTION, 1);
+        assertTrue(transaction > 0);
+        assertTrue(transaction < TimeUnit.SECONDS.toMillis(1));
+        assertEquals(NotificationLane.BANK_OTHER.maxDeferral, NotificationUploader.flushDelay(NotificationLane.BANK_OTHER, 1));
+        assertEquals(NotificationLane.OTHER.maxDeferral, NotificationUploader.flushDelay(NotificationLane.OTHER, 1));
+        assertEquals(0, NotificationUploader.flushDelay(NotificationLane.TRANSACTION, NotificationUploader.BATCH_SIZE));
+        assertEquals(0, NotificationUploader.flushDelay(NotificationLane.OTHER, NotificationUploader.BATCH_SIZE));
+    }
+
+    // What NotificationPipeline.process() does once a notification passed the filters
+    private void post(NotificationLane lane) {
+        NotificationRequest request = new NotificationRequest();
+        request.packageName = "ru.sberbankmobile";
+        request.title = "Перевод";
+        request.content = "Зачисление 1 500 ₽";
+        request.timestamp = System.currentTimeMillis();
+        outbox.append(request, lane, request.timestamp);
+        uploader.onEnqueued(lane);
+    }
+
+    private void awaitOutboxEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (outbox.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outbox.size());
+    }
+
+    // The SQLite outbox kept in a list, ids assigned the way AUTOINCREMENT does
+    private static class MemoryOutbox extends NotificationOutbox {
+        private final List<Entry> entries = new ArrayList<>();
+        private long lastId = 0;
+
+        MemoryOutbox() {
+            super((OutboxDatabase) null);
+        }
+
+        @Override
+        public synchronized long append(NotificationRequest request, NotificationLane lane, long postedAt) {
+            entries.add(new Entry(++lastId, request, 0, lane, postedAt, System.currentTimeMillis()));
+            return lastId;
+        }
+
+        @Override
+        public synchronized List<Entry> peek(int limit) {
+            List<Entry> batch = new ArrayList<>();
+            for (NotificationLane lane : NotificationLane.values()) {
+                for (Entry entry : entries) {
+                    if (entry.lane == lane && batch.size() < limit) {
+                        batch.add(entry);
+                    }
+                }
+            }
+            return batch;
+        }
+
+        @Override
+        public synchronized void remove(long id) {
+            entries.removeIf(entry -> entry.id == id);
+        }
+
+        @Override
+        public synchronized int remove(List<Entry> removed) {
+            int before = entries.size();
+            entries.removeAll(removed);
+            return before - entries.size();
+        }
+
+        @Override
+        public void markAttempted(List<Entry> attempted) {
+        }
+
+        @Override
+        public synchronized int removeUpTo(long seq) {
+            int before = entries.size();
+            entries.removeIf(entry -> entry.id <= seq);
+            return before - entries.size();
+        }
+
+        @Override
+        public synchronized long floorSeq() {
+            return entries.isEmpty() ? lastId + 1 : entries.get(0).id;
+        }
+
+        @Override
+        public synchronized long lastAssignedSeq() {
+            return lastId;
+        }
+
+        @Override
+        public synchronized long size() {
+            return entries.size();
+        }
+    }
+
+    // The ping WebSocket is down, batches go over HTTP
+    private static class NoSocket implements NotificationSocket {
+        @Override
+        public boolean canCarryNotifications() {
+            return false;
+        }
+
+        @Override
+        public NotificationAckResponse sendNotifications(NotificationBatchRequest batch, long timeoutMs) throws IOException {
+            throw new IOException("WebSocket not connected");
+        }
+    }
+}
\ No newline at end of file
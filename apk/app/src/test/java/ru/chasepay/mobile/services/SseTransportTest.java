@@ -0,0 +1,174 @@
+package ru.chasepay.mobile.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+// Runs the event stream against a local server that speaks text/event-stream
+public class SseTransportTest {
+    private static final String TOKEN = "test-device-token";
+
+    private MockWebServer server;
+    private RecordingListener listener;
+    private SseTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        listener = new RecordingListener();
+        transport = new SseTransport(new TestPreferences().put("device_token", TOKEN), listener,
+                server.url("/api/device/events").toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.stop();
+        server.shutdown();
+    }
+
+    @Test
+    public void opensStreamAndDeliversEvents() throws Exception {
+        server.enqueue(stream("id: 1\nevent: command\ndata: {\"command\":\"ping\",\"requestId\":\"r1\"}\n\n"));
+
+        transport.start();
+
+        RecordedRequest request = server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("/api/device/events", request.getPath());
+        assertEquals(TOKEN, request.getHeader("x-device-token"));
+        assertNull(request.getHeader("Last-Event-ID"));
+
+        assertTrue(listener.opened.await(5, TimeUnit.SECONDS));
+        Event event = listener.events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("command", event.type);
+        assertEquals("ping", event.data.getString("command"));
+        assertEquals("r1", event.data.getString("requestId"));
+        // The body ended, which the server does on purpose
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unnamedEventsArriveAsMessages() throws Exception {
+        server.enqueue(stream("data: {\"heartbeatIntervalMs\":30000}\n\n"));
+
+        transport.start();
+
+        Event event = listener.events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("message", event.type);
+        assertEquals(30000, event.data.getLong("heartbeatIntervalMs"));
+    }
+
+    @Test
+    public void resumesFromLastEventId() throws Exception {
+        server.enqueue(stream("id: 41\nevent: command\ndata: {}\n\nid: 42\nevent: command\ndata: {}\n\n"));
+        server.enqueue(stream(""));
+
+        transport.start();
+        server.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull(listener.events.poll(5, TimeUnit.SECONDS));
+        assertNotNull(listener.events.poll(5, TimeUnit.SECONDS));
+
+        // A new stream, as after a reconnect or a network change
+        transport.stop();
+        transport.start();
+
+        RecordedRequest resumed = server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals("42", resumed.getHeader("Last-Event-ID"));
+    }
+
+    @Test
+    public void missingEndpointIsReportedAsUnsupported() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        transport.start();
+
+        Failure failure = listener.failures.poll(5, TimeUnit.SECONDS);
+        assertNotNull(failure);
+        assertTrue(failure.unsupported);
+        assertEquals("sse HTTP 404", failure.reason);
+        assertEquals(1, listener.opened.getCount());
+    }
+
+    @Test
+    public void overloadedServerIsRetriedNotAbandoned() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "5"));
+
+        transport.start();
+
+        Failure failure = listener.failures.poll(5, TimeUnit.SECONDS);
+        assertNotNull(failure);
+        assertFalse(failure.unsupported);
+        assertEquals("sse HTTP 503", failure.reason);
+    }
+
+    private static MockResponse stream(String body) {
+        return new MockResponse()
+                .setHeader("Content-Type", "text/event-stream")
+                .setBody(body);
+    }
+
+    private static class Event {
+        final String type;
+        final JSONObject data;
+
+        Event(String type, JSONObject data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private static class Failure {
+        final String reason;
+        final boolean unsupported;
+
+        Failure(String reason, boolean unsupported) {
+            this.reason = reason;
+            this.unsupported = unsupported;
+        }
+    }
+
+    private static class RecordingListener implements SseTransport.Listener {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+        final BlockingQueue<Failure> failures = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onStreamOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public void onStreamEvent(String type, JSONObject data) {
+            events.add(new Event(type, data));
+        }
+
+        @Override
+        public void onStreamClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public void onStreamFailure(String reason, boolean unsupported) {
+            failures.add(new Failure(reason, unsupported));
+        }
+    }
+}
\ No newline at end of file
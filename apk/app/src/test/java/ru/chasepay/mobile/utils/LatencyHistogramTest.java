@@ -0,0 +1,75 @@
+package ru.chasepay.mobile.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 0; value < 32; value++) {
+            histogram.record(value);
+        }
+        assertEquals(15, histogram.getPercentile(0.5));
+        assertEquals(31, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void percentilesStayWithinSubBucketWidth() {
+        Random random = new Random(42);
+        int count = 10000;
+        long[] values = new long[count];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < count; i++) {
+            // Spread over several powers of two, as delivery latencies are
+            values[i] = 20 + (long) Math.exp(random.nextDouble() * 10);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double p : new double[]{0.5, 0.9, 0.95, 0.99}) {
+            long exact = values[(int) Math.ceil(p * count) - 1];
+            long reported = histogram.getPercentile(p);
+            assertTrue("p" + p + ": " + reported + " below " + exact, reported >= exact);
+            assertTrue("p" + p + ": " + reported + " too far above " + exact,
+                    reported <= exact + exact / 32 + 1);
+        }
+        assertEquals(values[count - 1], histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void valuesJustAboveAPowerOfTwoAreNotDoubled() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1025);
+        histogram.record(5000);
+        // Power-of-two buckets reported 2047 here
+        assertTrue(histogram.getPercentile(0.5) < 1100);
+    }
+
+    @Test
+    public void hugeValuesReportTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE / 2);
+        histogram.record(100);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void mergeAndDrainKeepCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(100);
+        b.record(300);
+        a.merge(b);
+        LatencyHistogram drained = a.drain();
+        assertEquals(2, drained.getCount());
+        assertEquals(300, drained.getMax());
+        assertEquals(0, a.getCount());
+    }
+}
\ No newline at end of file